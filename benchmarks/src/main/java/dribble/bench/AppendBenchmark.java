@@ -0,0 +1,111 @@
+package dribble.bench;
+
+import dribble.Durability;
+import dribble.Journal;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Appends from 1, 4 and 16 producer threads. Throughput is appends per second. The sample time mode gives latency
+ * percentiles. Plain appends only queue the record, but the journal blocks them once its backlog is full (see
+ * Journals.BACKLOG_BYTES), so over an iteration they run at the writer's pace and their latency includes the time
+ * spent blocked. The await variants also wait for each record to be written or synced.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AppendBenchmark {
+    @Param({"100", "1024", "16384"})
+    public int recordSize;
+
+    @Param({Journals.SYNC_EVERY_APPEND, Journals.SYNC_BYTES, Journals.SYNC_WRITES, Journals.SYNC_TIME})
+    public String syncPolicy;
+
+    @Param({"1048576", "67108864"})
+    public long segmentSize;
+
+    private File dir;
+    private Journal journal;
+    private ByteBuffer record;
+
+    @Setup(Level.Iteration)
+    public void open() {
+        dir = Journals.tempDir();
+        journal = Journals.open(dir, syncPolicy, segmentSize);
+        record = Journals.record(recordSize);
+    }
+
+    // at most a full backlog is left to drain outside the measurement.
+    @TearDown(Level.Iteration)
+    public void close() throws Exception {
+        journal.drain();
+        journal.close();
+        Journals.remove(dir);
+    }
+
+    // the journal never changes the caller's buffer, so every thread can append the same one.
+    private Journal.Receipt append() throws Exception {
+        return journal.append(record.duplicate());
+    }
+
+    @Benchmark
+    @Threads(1)
+    public Journal.Receipt append1() throws Exception {
+        return append();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Journal.Receipt append4() throws Exception {
+        return append();
+    }
+
+    @Benchmark
+    @Threads(16)
+    public Journal.Receipt append16() throws Exception {
+        return append();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public Journal.Receipt appendAndAwaitWritten1() throws Exception {
+        Journal.Receipt receipt = append();
+        receipt.await(Long.MAX_VALUE);
+        return receipt;
+    }
+
+    @Benchmark
+    @Threads(16)
+    public Journal.Receipt appendAndAwaitWritten16() throws Exception {
+        Journal.Receipt receipt = append();
+        receipt.await(Long.MAX_VALUE);
+        return receipt;
+    }
+
+    @Benchmark
+    @Threads(16)
+    public Journal.Receipt appendAndAwaitSynced16() throws Exception {
+        Journal.Receipt receipt = append();
+        receipt.await(Long.MAX_VALUE, Durability.SYNCED);
+        return receipt;
+    }
+}
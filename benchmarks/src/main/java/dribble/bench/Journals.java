@@ -0,0 +1,75 @@
+package dribble.bench;
+
+import com.google.common.io.Files;
+import dribble.BackpressurePolicy;
+import dribble.FileSegmentFactory;
+import dribble.Journal;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/** Journals in throwaway directories, set up the way a benchmark's parameters say. */
+class Journals {
+    /** Every append is synced before the next one. */
+    static final String SYNC_EVERY_APPEND = "every-append";
+    /** Synced after 1mb. */
+    static final String SYNC_BYTES = "bytes";
+    /** Synced after 1000 records. */
+    static final String SYNC_WRITES = "writes";
+    /** Synced every 100ms. */
+    static final String SYNC_TIME = "time";
+
+    /**
+     * Appends block once this much is waiting to be written, so producers cannot get further ahead of the writer than
+     * that. Without it a benchmark only measures how fast records get queued, and the queue grows until the fork runs
+     * out of heap.
+     */
+    static final long BACKLOG_BYTES = 0x01000000;
+
+    static File tempDir() {
+        return Files.createTempDir();
+    }
+
+    static Journal open(File dir, String syncPolicy, long segmentSize) {
+        FileSegmentFactory.FileSegmentFactoryBuilder builder = FileSegmentFactory.FileSegmentFactoryBuilder
+                .newBuilder()
+                .withDirectory(dir)
+                .withBytesBetweenSync(0)
+                .withWritesBetweenSync(0)
+                .withMillisBetweenSync(0);
+        if (SYNC_EVERY_APPEND.equals(syncPolicy)) {
+            builder.withSyncAfterEveryAppend(true);
+        } else if (SYNC_BYTES.equals(syncPolicy)) {
+            builder.withBytesBetweenSync(0x00100000);
+        } else if (SYNC_WRITES.equals(syncPolicy)) {
+            builder.withWritesBetweenSync(1000);
+        } else if (SYNC_TIME.equals(syncPolicy)) {
+            builder.withMillisBetweenSync(100);
+        } else {
+            throw new IllegalArgumentException("Unknown sync policy " + syncPolicy);
+        }
+        return Journal.JournalBuilder
+                .newBuilder()
+                .withSegmentFactory(builder.build())
+                .withSegmentSize(segmentSize)
+                .withBacklogBytes(BACKLOG_BYTES, BACKLOG_BYTES / 2)
+                .withBackpressurePolicy(BackpressurePolicy.BLOCK)
+                .build();
+    }
+
+    static ByteBuffer record(int size) {
+        byte[] bytes = new byte[size];
+        new Random(size).nextBytes(bytes);
+        return ByteBuffer.wrap(bytes);
+    }
+
+    static void remove(File f) {
+        if (f.isDirectory()) {
+            for (File ch : f.listFiles()) {
+                remove(ch);
+            }
+        }
+        f.delete();
+    }
+}
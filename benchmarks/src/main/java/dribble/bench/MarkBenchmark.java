@@ -0,0 +1,72 @@
+package dribble.bench;
+
+import dribble.Journal;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A consumer that marks after every so many records. The time includes the appends, since that is the rate at which
+ * a real consumer marks, and the segments the marks leave behind get reclaimed in the background.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.AverageTime, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MarkBenchmark {
+    @Param({"1024"})
+    public int recordSize;
+
+    @Param({"1", "100"})
+    public int recordsPerMark;
+
+    @Param({Journals.SYNC_BYTES, Journals.SYNC_TIME})
+    public String syncPolicy;
+
+    @Param({"1048576"})
+    public long segmentSize;
+
+    private File dir;
+    private Journal journal;
+    private ByteBuffer record;
+
+    @Setup(Level.Iteration)
+    public void open() {
+        dir = Journals.tempDir();
+        journal = Journals.open(dir, syncPolicy, segmentSize);
+        record = Journals.record(recordSize);
+    }
+
+    @TearDown(Level.Iteration)
+    public void close() throws Exception {
+        journal.drain();
+        journal.close();
+        Journals.remove(dir);
+    }
+
+    @Benchmark
+    public Journal.Receipt appendAndMark() throws Exception {
+        Journal.Receipt receipt = null;
+        for (int i = 0; i < recordsPerMark; i++) {
+            receipt = journal.append(record.duplicate());
+        }
+        journal.mark(receipt);
+        return receipt;
+    }
+}
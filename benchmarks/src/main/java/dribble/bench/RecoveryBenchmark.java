@@ -0,0 +1,78 @@
+package dribble.bench;
+
+import dribble.Journal;
+import dribble.JournalObserver;
+import dribble.ReadMode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Recovers a journal that was written once, before the trial. The data comes from the page cache after the first
+ * round, so this measures framing, checksums and copying rather than the disk.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class RecoveryBenchmark {
+    @Param({"100", "1024", "16384"})
+    public int recordSize;
+
+    @Param({"268435456"})
+    public long journalBytes;
+
+    @Param({"67108864"})
+    public long segmentSize;
+
+    @Param({"COPY", "MAPPED"})
+    public ReadMode mode;
+
+    private File dir;
+    private Journal journal;
+
+    @Setup(Level.Trial)
+    public void generate() throws Exception {
+        dir = Journals.tempDir();
+        Journal writer = Journals.open(dir, Journals.SYNC_BYTES, segmentSize);
+        ByteBuffer record = Journals.record(recordSize);
+        for (long written = 0; written < journalBytes; written += recordSize) {
+            writer.append(record.duplicate());
+        }
+        writer.drain();
+        writer.close();
+        journal = Journals.open(dir, Journals.SYNC_BYTES, segmentSize);
+    }
+
+    @TearDown(Level.Trial)
+    public void remove() throws Exception {
+        journal.close();
+        Journals.remove(dir);
+    }
+
+    @Benchmark
+    public void recover(final Blackhole blackhole) throws Exception {
+        journal.recover(new JournalObserver() {
+            public void recover(ByteBuffer buf) {
+                blackhole.consume(buf);
+            }
+        }, mode);
+    }
+}
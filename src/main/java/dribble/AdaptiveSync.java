@@ -0,0 +1,96 @@
+package dribble;
+
+/**
+ * Decides when to sync from what syncs have cost lately, instead of after fixed amounts of bytes, writes or time.
+ * The goal is a target for the time from a write to the end of the sync that covers it, for 99% of writes, while
+ * syncing as rarely as that allows: fewer syncs means bigger batches and more throughput.
+ *
+ * The oldest unsynced write waits for the delay, for however late the sync starts after that (a syncer that wakes up
+ * late, or one still busy with the previous sync), and then for the sync itself, which costs a fixed amount plus an
+ * amount per byte. The last 64 syncs give both: the per byte cost is the slope of a least squares fit of duration on
+ * bytes, and the fixed cost is the worst of what is left once that is taken off, lateness included. That is a max over
+ * a 64 sample window, not a p99: 64 samples are too few for a real one, and the max errs on the side of syncing early,
+ * at the price of a single slow sync shortening the delay until 64 more have gone by. Bytes pile up at the recent
+ * arrival rate while the delay runs, so the longest delay that still meets the target is
+ *
+ *     delay = (target - fixed) / (1 + perByte * rate)
+ *
+ * When syncs alone cost more than the target, the delay is zero: every write gets synced as soon as the previous sync
+ * is out of the way, which is the best the disk can do. Shared by every segment of a factory, since the disk and the
+ * traffic do not change when the journal rolls over, and safe to use from the writer and the syncer at once.
+ */
+class AdaptiveSync {
+    private static final int WINDOW = 64;
+    
+    // weight of the newest interval in the arrival rate.
+    private static final double RATE_WEIGHT = 0.2;
+    
+    private final long targetNanos;
+    
+    // guarded by this. a ring of the most recent syncs.
+    private final long[] lateNanos = new long[WINDOW];
+    private final long[] tookNanos = new long[WINDOW];
+    private final long[] bytes = new long[WINDOW];
+    private int samples = 0;
+    private int next = 0;
+    private long lastStarted = 0;
+    private double bytesPerNano = 0;
+    
+    private volatile long delayNanos = 0;
+    
+    AdaptiveSync(long targetNanos) {
+        this.targetNanos = targetNanos;
+    }
+    
+    public long getTargetNanos() {
+        return targetNanos;
+    }
+    
+    /** How long after the oldest unsynced write the next sync should start. Zero until a sync has been measured. */
+    public long getDelayNanos() {
+        return delayNanos;
+    }
+    
+    /** 
+     * A sync of this many bytes started at startedNanos (System.nanoTime()), this long after the delay was up, and
+     * took this long.
+     */
+    public synchronized void synced(long startedNanos, long late, long took, long synced) {
+        if (samples > 0 && startedNanos > lastStarted) {
+            double rate = (double)synced / (startedNanos - lastStarted);
+            bytesPerNano = samples == 1 ? rate : bytesPerNano + RATE_WEIGHT * (rate - bytesPerNano);
+        }
+        lastStarted = startedNanos;
+        lateNanos[next] = Math.max(0, late);
+        tookNanos[next] = took;
+        bytes[next] = synced;
+        next = (next + 1) % WINDOW;
+        samples = Math.min(samples + 1, WINDOW);
+        delayNanos = delay();
+    }
+    
+    private long delay() {
+        double meanBytes = 0;
+        double meanTook = 0;
+        for (int i = 0; i < samples; i++) {
+            meanBytes += bytes[i];
+            meanTook += tookNanos[i];
+        }
+        meanBytes /= samples;
+        meanTook /= samples;
+        double covariance = 0;
+        double variance = 0;
+        for (int i = 0; i < samples; i++) {
+            covariance += (bytes[i] - meanBytes) * (tookNanos[i] - meanTook);
+            variance += (bytes[i] - meanBytes) * (bytes[i] - meanBytes);
+        }
+        // with batches that were all the same size there is nothing to fit, and it all counts as fixed cost.
+        double perByte = variance > 0 ? Math.max(0, covariance / variance) : 0;
+        double fixed = 0;
+        for (int i = 0; i < samples; i++) {
+            fixed = Math.max(fixed, lateNanos[i] + tookNanos[i] - perByte * bytes[i]);
+        }
+        double delay = (targetNanos - fixed) / (1 + perByte * bytesPerNano);
+        return (long)Math.max(0, Math.min(delay, targetNanos));
+    }
+}
@@ -0,0 +1,92 @@
+package dribble;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Keeps track of the bytes and records that have been appended but not written yet. Once either goes over its high 
+ * water mark, appends are throttled until both are back under their low water marks. The high water marks are soft:
+ * producers racing each other can overshoot them by a few records.
+ */
+class Backpressure {
+    private final long highWaterBytes;
+    private final long lowWaterBytes;
+    private final int highWaterRecords;
+    private final int lowWaterRecords;
+    private final BackpressurePolicy policy;
+    
+    private final AtomicLong pendingBytes = new AtomicLong(0);
+    private final AtomicInteger pendingRecords = new AtomicInteger(0);
+    
+    // the count only ever goes down while holding this lock, so a throttled producer cannot miss its wakeup.
+    private final Lock lock = new ReentrantLock();
+    private final Condition drained = lock.newCondition();
+    private volatile boolean throttled = false;
+    
+    Backpressure(long highWaterBytes, long lowWaterBytes, int highWaterRecords, int lowWaterRecords, BackpressurePolicy policy) {
+        if (lowWaterBytes > highWaterBytes || lowWaterRecords > highWaterRecords) {
+            throw new IllegalArgumentException("Low water marks cannot be above high water marks");
+        }
+        this.highWaterBytes = highWaterBytes;
+        this.lowWaterBytes = lowWaterBytes;
+        this.highWaterRecords = highWaterRecords;
+        this.lowWaterRecords = lowWaterRecords;
+        this.policy = policy;
+    }
+    
+    public long getPendingBytes() { return pendingBytes.get(); }
+    public int getPendingRecords() { return pendingRecords.get(); }
+    public boolean isThrottled() { return throttled; }
+    
+    // called by producers before a record is queued.
+    public void acquire(int bytes, int records) throws IOException {
+        if (throttled || overHighWater(bytes, records)) {
+            lock.lock();
+            try {
+                while (throttled || overHighWater(bytes, records)) {
+                    throttled = true;
+                    if (policy == BackpressurePolicy.FAIL) {
+                        throw new JournalFullException(String.format("Backlog is full (%d bytes, %d records)", pendingBytes.get(), pendingRecords.get()));
+                    }
+                    drained.await();
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the backlog to drain");
+            } finally {
+                lock.unlock();
+            }
+        }
+        pendingBytes.addAndGet(bytes);
+        pendingRecords.addAndGet(records);
+    }
+    
+    // called once the records have been written (or will never be written).
+    public void release(long bytes, int records) {
+        lock.lock();
+        try {
+            long nowBytes = pendingBytes.addAndGet(-bytes);
+            int nowRecords = pendingRecords.addAndGet(-records);
+            if (throttled && nowBytes <= lowWaterBytes && nowRecords <= lowWaterRecords) {
+                throttled = false;
+                drained.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    // an empty backlog always accepts, otherwise a single huge record could never be appended.
+    private boolean overHighWater(int bytes, int records) {
+        int nowRecords = pendingRecords.get();
+        if (nowRecords == 0) {
+            return false;
+        }
+        return pendingBytes.get() + bytes > highWaterBytes || nowRecords + records > highWaterRecords;
+    }
+}
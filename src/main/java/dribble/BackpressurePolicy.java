@@ -0,0 +1,10 @@
+package dribble;
+
+/** What {@link Journal#append(java.nio.ByteBuffer)} does when too many writes are waiting to be written. */
+public enum BackpressurePolicy {
+    /** Block the appending thread until the backlog falls under the low water mark. */
+    BLOCK,
+    
+    /** Throw a {@link JournalFullException} until the backlog falls under the low water mark. */
+    FAIL
+}
@@ -0,0 +1,73 @@
+package dribble;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Direct buffers in power of two sizes, kept around so that writing to a file channel does not need a fresh direct
+ * buffer (or the JDK's hidden copy of a heap buffer) every time. Safe to share between threads. Requests bigger than
+ * the largest size are allocated every time and dropped on release.
+ */
+public class BufferPool {
+    private static final int MIN_SHIFT = 12; // 4kb
+
+    private final int maxShift;
+    private final List<BlockingQueue<ByteBuffer>> free;
+    private final AtomicLong allocations = new AtomicLong(0);
+
+    /** Up to 16 buffers of each size from 4kb to 1mb. */
+    public BufferPool() {
+        this(0x00100000, 16);
+    }
+
+    public BufferPool(int maxBufferSize, int buffersPerSize) {
+        int shift = MIN_SHIFT;
+        while ((1 << shift) < maxBufferSize) {
+            shift += 1;
+        }
+        this.maxShift = shift;
+        this.free = new ArrayList<BlockingQueue<ByteBuffer>>();
+        for (int i = MIN_SHIFT; i <= maxShift; i++) {
+            free.add(new ArrayBlockingQueue<ByteBuffer>(buffersPerSize));
+        }
+    }
+
+    /** A cleared direct buffer with its limit set to size. It may have more capacity than that. */
+    public ByteBuffer acquire(int size) {
+        int shift = shiftFor(size);
+        ByteBuffer buf = shift > maxShift ? null : free.get(shift - MIN_SHIFT).poll();
+        if (buf == null) {
+            allocations.incrementAndGet();
+            buf = ByteBuffer.allocateDirect(shift > maxShift ? size : 1 << shift);
+        }
+        buf.clear();
+        buf.limit(size);
+        return buf;
+    }
+
+    /** Hands a buffer from acquire() back. It must not be used afterwards. */
+    public void release(ByteBuffer buf) {
+        int shift = shiftFor(buf.capacity());
+        if (!buf.isDirect() || shift > maxShift || buf.capacity() != 1 << shift) {
+            return;
+        }
+        free.get(shift - MIN_SHIFT).offer(buf);
+    }
+
+    /** Buffers that had to be allocated because none were free. Stops going up once the pool is warm. */
+    public long getAllocations() {
+        return allocations.get();
+    }
+
+    private static int shiftFor(int size) {
+        int shift = MIN_SHIFT;
+        while (shift < 31 && (1 << shift) < size) {
+            shift += 1;
+        }
+        return shift;
+    }
+}
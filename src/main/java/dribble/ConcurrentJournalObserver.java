@@ -0,0 +1,9 @@
+package dribble;
+
+/**
+ * An observer that can take records from several segments at the same time. Parallel recovery calls recover() from
+ * multiple threads at once. Records from the same segment still arrive in order, one at a time, but there is no
+ * ordering between segments.
+ */
+public interface ConcurrentJournalObserver extends JournalObserver {
+}
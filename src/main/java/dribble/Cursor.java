@@ -0,0 +1,64 @@
+package dribble;
+
+import java.io.IOException;
+
+/**
+ * A named consumer's place in a journal: the lsn of the last record it is done with. Every cursor moves on its own,
+ * and a segment is only reclaimed once all of them (and the journal's mark, if there is one) have passed it. Cursors
+ * are saved in the journal's cursor manifest, so they survive a restart.
+ */
+public class Cursor {
+    private final Journal journal;
+    private final String name;
+    private volatile long lsn;
+
+    Cursor(Journal journal, String name, long lsn) {
+        this.journal = journal;
+        this.name = name;
+        this.lsn = lsn;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /** Lsn of the last record this consumer is done with. -1 until it has moved. */
+    public long getLsn() {
+        return lsn;
+    }
+
+    /** Done with everything up to and including the receipt's record. The receipt has to have been written. */
+    public void mark(Journal.Receipt receipt) throws IOException {
+        long lsn = receipt.getLsn();
+        if (lsn < 0) {
+            throw new IllegalArgumentException("Receipt has not been written yet");
+        }
+        mark(lsn);
+    }
+
+    /** Done with everything up to and including lsn. A cursor never moves back, so older lsns are ignored. */
+    public void mark(long lsn) throws IOException {
+        synchronized (this) {
+            if (lsn <= this.lsn) {
+                return;
+            }
+            this.lsn = lsn;
+        }
+        journal.cursorMoved();
+    }
+
+    /** Records written after the cursor. */
+    public long getLagRecords() {
+        return Math.max(0, journal.getWrittenWatermark() - lsn);
+    }
+
+    /** Bytes of segment (records and their headers) written after the cursor. */
+    public long getLagBytes() throws IOException {
+        return journal.bytesAfter(lsn);
+    }
+
+    /** A tail that picks up right after the cursor. */
+    public Tail tail() {
+        return journal.tail(lsn + 1);
+    }
+}
@@ -0,0 +1,65 @@
+package dribble;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Where every cursor of a journal is, in one small file: [int count][utf name, long lsn]... It is rewritten whole
+ * into a temporary file that is synced and renamed over the old one (and the directory synced after that), so a
+ * crash leaves either the old or the new manifest, never half of one.
+ */
+class CursorManifest {
+    private final File file;
+    private final File temp;
+
+    CursorManifest(File file) {
+        this.file = file;
+        this.temp = new File(file.getParentFile(), file.getName() + ".tmp");
+    }
+
+    /** Cursor names and lsns as last saved. Empty if there is no manifest yet. */
+    public Map<String, Long> load() throws IOException {
+        Map<String, Long> cursors = new LinkedHashMap<String, Long>();
+        if (!file.exists()) {
+            return cursors;
+        }
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String name = in.readUTF();
+                cursors.put(name, in.readLong());
+            }
+        } finally {
+            in.close();
+        }
+        return cursors;
+    }
+
+    public synchronized void save(Map<String, Long> cursors) throws IOException {
+        FileOutputStream fos = new FileOutputStream(temp);
+        try {
+            DataOutputStream out = new DataOutputStream(fos);
+            out.writeInt(cursors.size());
+            for (Map.Entry<String, Long> cursor : cursors.entrySet()) {
+                out.writeUTF(cursor.getKey());
+                out.writeLong(cursor.getValue());
+            }
+            out.flush();
+            fos.getFD().sync();
+        } finally {
+            fos.close();
+        }
+        if (!temp.renameTo(file)) {
+            throw new IOException("Could not rename " + temp.getAbsolutePath() + " to " + file.getAbsolutePath());
+        }
+        // until the directory is synced, a crash could undo the rename and move every cursor back.
+        Util.syncDirectory(file.getAbsoluteFile().getParentFile());
+    }
+}
@@ -9,8 +9,15 @@ public interface DataIO {
     public long position() throws IOException;
     public void seek(long l) throws IOException;
     public int write(ByteBuffer buf) throws IOException;
+    public long write(ByteBuffer[] bufs, int offset, int length) throws IOException;
     public int read(ByteBuffer buf) throws IOException;
+    /** Reads from position without moving the file pointer. Safe to call while another thread writes. */
+    public int read(ByteBuffer buf, long position) throws IOException;
     public int generation();
+    /** A read-only view of everything in the data file. Positions in the view are positions in the file. */
+    public ByteBuffer map() throws IOException;
+    /** Cuts the data file down to size bytes. The position is left at or before the new end. */
+    public void truncate(long size) throws IOException;
     public void delete() throws IOException;
     
 }
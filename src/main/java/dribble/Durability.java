@@ -0,0 +1,10 @@
+package dribble;
+
+/** How far a record has to get before a receipt considers it durable. */
+public enum Durability {
+    /** Handed to the OS. Survives the process dying, but not the machine. */
+    WRITTEN,
+    
+    /** Fsynced to the device. */
+    SYNCED
+}
@@ -14,6 +14,11 @@ public class FileDataIO implements DataIO {
     private final RandomAccessFile raf;
     private final FileChannel fc;
     private final int generation;
+    private final boolean syncMetadata;
+    private final BufferPool staging; // null to hand heap buffers straight to the channel.
+    
+    // the most that gets staged at once. bigger batches are written in pieces.
+    private static final int MAX_STAGE = 0x00040000;
     
     public FileDataIO(File f, int generation) {
         this.file = f;
@@ -24,14 +29,43 @@ public class FileDataIO implements DataIO {
             throw new IOError(ex);
         }
         this.generation = generation;
+        this.syncMetadata = true;
+        this.staging = null;
+    }
+    
+    // once the blocks are allocated and their metadata is synced, appending does not change anything a sync needs to
+    // write besides the data.
+    public FileDataIO(File f, int generation, long preallocate) throws IOException {
+        this(f, generation, preallocate, null);
     }
+    
+    /** 
+     * preallocate is zero to leave the file alone. With a staging pool, heap buffers are copied into a pooled direct 
+     * buffer before a gathering write, instead of the channel copying each one into a temporary direct buffer.
+     */
+    public FileDataIO(File f, int generation, long preallocate, BufferPool staging) throws IOException {
+        this.file = f;
+        try {
+            raf = new RandomAccessFile(f, "rw");
+            fc = raf.getChannel();
+        } catch (FileNotFoundException ex) {
+            throw new IOError(ex);
+        }
+        this.generation = generation;
+        if (preallocate > 0) {
+            Util.preallocate(fc, preallocate);
+        }
+        this.syncMetadata = preallocate <= 0;
+        this.staging = staging;
+    }
+    
     public void close() throws IOException {
         fc.close();
         raf.close();
     }
 
     public void sync() throws IOException {
-        fc.force(true);
+        fc.force(syncMetadata);
     }
 
     public long position() throws IOException {
@@ -46,10 +80,73 @@ public class FileDataIO implements DataIO {
         return fc.write(buf);
     }
 
+    public long write(ByteBuffer[] bufs, int offset, int length) throws IOException {
+        if (staging == null || allDirect(bufs, offset, length)) {
+            return fc.write(bufs, offset, length);
+        }
+        long total = 0;
+        for (int i = offset; i < offset + length; i++) {
+            total += bufs[i].remaining();
+        }
+        ByteBuffer stage = staging.acquire((int)Math.min(total, MAX_STAGE));
+        try {
+            for (int i = offset; i < offset + length; i++) {
+                ByteBuffer buf = bufs[i];
+                while (buf.hasRemaining()) {
+                    if (!stage.hasRemaining()) {
+                        flush(stage);
+                    }
+                    int n = Math.min(stage.remaining(), buf.remaining());
+                    ByteBuffer piece = buf.duplicate();
+                    piece.limit(piece.position() + n);
+                    stage.put(piece);
+                    buf.position(buf.position() + n);
+                }
+            }
+            flush(stage);
+        } finally {
+            staging.release(stage);
+        }
+        return total;
+    }
+    
+    private void flush(ByteBuffer stage) throws IOException {
+        stage.flip();
+        while (stage.hasRemaining()) {
+            fc.write(stage);
+        }
+        stage.clear();
+    }
+    
+    private static boolean allDirect(ByteBuffer[] bufs, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            if (!bufs[i].isDirect()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     public int read(ByteBuffer buf) throws IOException {
         return fc.read(buf);
     }
 
+    public int read(ByteBuffer buf, long position) throws IOException {
+        return fc.read(buf, position);
+    }
+
+    public ByteBuffer map() throws IOException {
+        long size = fc.size();
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Cannot map more than 2gb per segment");
+        }
+        return fc.map(FileChannel.MapMode.READ_ONLY, 0, size);
+    }
+
+    public void truncate(long size) throws IOException {
+        fc.truncate(size);
+    }
+
     public int generation() {
         return generation;
     }
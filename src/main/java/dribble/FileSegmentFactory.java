@@ -1,7 +1,8 @@
 package dribble;
 
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
 import com.google.common.collect.Lists;
-import com.sun.swing.internal.plaf.metal.resources.metal;
 
 import java.io.File;
 import java.io.FileFilter;
@@ -10,6 +11,9 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 public class FileSegmentFactory implements SegmentFactory {
@@ -18,6 +22,11 @@ public class FileSegmentFactory implements SegmentFactory {
             return pathname.getName().endsWith("-segment.log");
         }
     };
+    private static final FileFilter recycleFilter = new FileFilter() {
+        public boolean accept(File pathname) {
+            return pathname.getName().endsWith("-recycle.log");
+        }
+    };
     private static final Comparator<File> segmentComparator = new Comparator<File>() {
         public int compare(File a, File b) {
             int ia = Integer.parseInt(a.getName().split("\\-", -1)[0]);
@@ -31,36 +40,84 @@ public class FileSegmentFactory implements SegmentFactory {
     private final long millisBetweenSync;
     private final long writesBetweenSync;
     private final boolean syncAlways;
+    private final AdaptiveSync adaptive; // null unless there is a sync target.
+    private final long mapSize;
+    private final long preallocate;
+    private final BufferPool staging;
+    
+    // all null without a metric registry.
+    private final Timer syncTimer;
+    private final Timer forceTimer;
+    private final Timer createTimer;
+    private final Timer deleteTimer;
     
     private final AtomicInteger fileId = new AtomicInteger(0);
     
-    private FileSegmentFactory(File dir, long bytesBetweenSync, long millisBetweenSync, long writesBetweenSync, boolean syncAlways) {
+    // retired data files waiting to become the next segment. null when recycling is off.
+    private final BlockingQueue<File> recycled;
+    
+    private FileSegmentFactory(File dir, long bytesBetweenSync, long millisBetweenSync, long writesBetweenSync, boolean syncAlways, long syncTargetMicros, long mapSize, long preallocate, int recyclePoolSize, BufferPool staging, MetricRegistry registry, String name) {
         this.dir = dir;
         this.bytesBetweenSync = bytesBetweenSync;
         this.millisBetweenSync = millisBetweenSync;
         this.writesBetweenSync = writesBetweenSync;
         this.syncAlways = syncAlways;
+        this.adaptive = syncTargetMicros > 0 ? new AdaptiveSync(TimeUnit.MICROSECONDS.toNanos(syncTargetMicros)) : null;
+        this.mapSize = mapSize;
+        this.preallocate = preallocate;
+        this.staging = staging;
+        this.recycled = recyclePoolSize > 0 ? new LinkedBlockingQueue<File>(recyclePoolSize) : null;
+        this.syncTimer = registry == null ? null : registry.timer(MetricRegistry.name(name, "segment-sync"));
+        this.forceTimer = registry == null ? null : registry.timer(MetricRegistry.name(name, "segment-force"));
+        this.createTimer = registry == null ? null : registry.timer(MetricRegistry.name(name, "segment-create"));
+        this.deleteTimer = registry == null ? null : registry.timer(MetricRegistry.name(name, "segment-delete"));
         
         int maxId = -1;
         for (File f : dir.listFiles(segmentFilter)) {
             int id = Integer.parseInt(f.getName().split("\\-", -1)[0]);
             maxId = Math.max(maxId, id);
         }
+        // new generations have to be newer than anything left in a recycled file, or its stale records would pass for
+        // fresh ones.
+        for (File f : dir.listFiles(recycleFilter)) {
+            int id = Integer.parseInt(f.getName().split("\\-", -1)[0]);
+            maxId = Math.max(maxId, id);
+            if (recycled == null || !recycled.offer(f)) {
+                f.delete();
+            }
+        }
         maxId += 1;
         fileId.set(maxId + 1);
     }
     
     public Segment next() throws IOException {
+        long started = System.nanoTime();
         int id = fileId.getAndIncrement();
         File dataFile = new File(dir, String.format("%d-segment.log", id));
         File metaFile = new File(dir, String.format("%d-meta.log", id));
-        DataIO dataIO = new FileDataIO(dataFile, id);
+        File reuse = recycled == null ? null : recycled.poll();
+        if (reuse != null) {
+            // the old contents stay. they carry an older generation, so readers will not mistake them for ours. if
+            // the file was preallocated, it already has all of its blocks.
+            rename(reuse, dataFile);
+        }
+        DataIO dataIO;
+        if (mapSize > 0) {
+            dataIO = new MappedDataIO(dataFile, id, mapSize, preallocate > 0);
+        } else {
+            dataIO = new FileDataIO(dataFile, id, preallocate, staging);
+        }
         MetaIO metaIO = new FileMetaIO(metaFile);
         Segment segment = Segment.forWrite(dataIO, metaIO);
         segment.syncAfterBytes(bytesBetweenSync);
         segment.syncAfterTime(millisBetweenSync);
         segment.syncAfterWrites(writesBetweenSync);
         segment.syncAlways(syncAlways);
+        segment.syncAdaptively(adaptive);
+        segment.timeSyncs(syncTimer, forceTimer);
+        if (createTimer != null) {
+            createTimer.update(System.nanoTime() - started, TimeUnit.NANOSECONDS);
+        }
         return segment;
     }
 
@@ -77,6 +134,45 @@ public class FileSegmentFactory implements SegmentFactory {
         }
         return segments;
     }
+    
+    public void recycle(Segment segment) throws IOException {
+        long started = System.nanoTime();
+        try {
+            retire(segment);
+        } finally {
+            if (deleteTimer != null) {
+                deleteTimer.update(System.nanoTime() - started, TimeUnit.NANOSECONDS);
+            }
+        }
+    }
+    
+    private void retire(Segment segment) throws IOException {
+        int id = segment.generation();
+        File dataFile = new File(dir, String.format("%d-segment.log", id));
+        File metaFile = new File(dir, String.format("%d-meta.log", id));
+        if (recycled == null || recycled.remainingCapacity() == 0) {
+            segment.delete();
+            return;
+        }
+        segment.close();
+        // rename before the meta file goes away. a data file without its meta file would be recovered from the start.
+        File recycleFile = new File(dir, String.format("%d-recycle.log", id));
+        rename(dataFile, recycleFile);
+        if (!metaFile.delete()) {
+            throw new IOException("Could not delete " + metaFile.getAbsolutePath());
+        }
+        if (!recycled.offer(recycleFile) && !recycleFile.delete()) {
+            throw new IOException("Could not delete " + recycleFile.getAbsolutePath());
+        }
+    }
+    
+    private static void rename(File from, File to) throws IOException {
+        if (!from.renameTo(to)) {
+            throw new IOException("Could not rename " + from.getAbsolutePath() + " to " + to.getAbsolutePath());
+        }
+        // or a crash could bring the file back under its old name.
+        Util.syncDirectory(to.getAbsoluteFile().getParentFile());
+    }
 
     public static class FileSegmentFactoryBuilder {
         private File dir;
@@ -84,6 +180,13 @@ public class FileSegmentFactory implements SegmentFactory {
         private long millisBetweenSync = 10000;
         private long writesBetweenSync = 10000;
         private boolean syncAlways = false;
+        private long syncTargetMicros = 0;
+        private long mapSize = 0;
+        private long preallocate = 0;
+        private int recyclePoolSize = 0;
+        private BufferPool staging = new BufferPool();
+        private MetricRegistry registry = null;
+        private String name = null;
 
         private FileSegmentFactoryBuilder() { }
         
@@ -116,8 +219,66 @@ public class FileSegmentFactory implements SegmentFactory {
             return this;
         }
         
+        /** 
+         * Instead of syncing after fixed amounts of bytes, writes or time, sync as rarely as still gets 99% of writes
+         * synced within this many microseconds of being written, going by what recent syncs cost and how fast records
+         * arrive. The other sync settings are ignored. Zero (the default) keeps them.
+         */
+        public FileSegmentFactoryBuilder withSyncTarget(long micros) {
+            this.syncTargetMicros = micros;
+            return this;
+        }
+        
+        /** 
+         * Write segments through a memory mapping instead of the file channel. Pass the segment size the journal 
+         * uses; a segment that runs over gets remapped bigger. Zero (the default) turns mapping off.
+         */
+        public FileSegmentFactoryBuilder withMemoryMapping(long segmentSize) {
+            this.mapSize = segmentSize;
+            return this;
+        }
+        
+        /** 
+         * Allocate this many bytes (the journal's segment size is a good choice) for every new segment before it is
+         * used, so that appends never grow the file and syncs only have to write data. Zero (the default) turns it off.
+         * With memory mapping, the mapped size is allocated instead.
+         */
+        public FileSegmentFactoryBuilder withPreallocation(long bytes) {
+            this.preallocate = bytes;
+            return this;
+        }
+        
+        /** 
+         * Keep up to this many retired segment files around and rename them into new segments instead of deleting 
+         * one file and creating another. Works best with preallocation, since a reused file already has its blocks.
+         * Zero (the default) deletes retired segments.
+         */
+        public FileSegmentFactoryBuilder withRecycling(int poolSize) {
+            this.recyclePoolSize = poolSize;
+            return this;
+        }
+        
+        /** 
+         * Where segments get the direct buffers they copy heap records into before writing. By default every factory
+         * has a pool of its own. Null writes heap records as they are. Has no effect with memory mapping.
+         */
+        public FileSegmentFactoryBuilder withStaging(BufferPool pool) {
+            this.staging = pool;
+            return this;
+        }
+        
+        /** 
+         * Time segment syncs, forces, creation and deletion (or recycling) in the registry, under name. Null (the
+         * default) times nothing.
+         */
+        public FileSegmentFactoryBuilder withMetrics(MetricRegistry registry, String name) {
+            this.registry = registry;
+            this.name = name;
+            return this;
+        }
+        
         public SegmentFactory build() {
-            return new FileSegmentFactory(dir, bytesBetweenSync, millisBetweenSync, writesBetweenSync, syncAlways);
+            return new FileSegmentFactory(dir, bytesBetweenSync, millisBetweenSync, writesBetweenSync, syncAlways, syncTargetMicros, mapSize, preallocate, recyclePoolSize, staging, registry, name);
         }
     }
 }
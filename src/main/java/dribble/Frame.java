@@ -0,0 +1,114 @@
+package dribble;
+
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+/**
+ * How a record sits in a segment: [int length][int generation][long lsn][int crc][payload]. The generation is the one
+ * of the segment that wrote the record. A recycled segment file still holds records from the segment it used to be, and
+ * those carry an older generation, so a reader stops at the first frame that is not its own. The lsn is the record's
+ * log sequence number, which keeps counting up across segments and restarts. The crc covers the three fields before it
+ * and the payload, so a frame that was only partly written before a crash (or rotted since) ends the segment too.
+ */
+class Frame {
+    public static final int HEADER_SIZE = 20;
+
+    private static final int GENERATION_OFFSET = 4;
+    private static final int LSN_OFFSET = 8;
+    private static final int CRC_OFFSET = 16;
+
+    public final long lsn;
+    public final ByteBuffer payload;
+
+    Frame(long lsn, ByteBuffer payload) {
+        this.lsn = lsn;
+        this.payload = payload;
+    }
+
+    /** Fills in the header for payload, which is not consumed. */
+    public static void writeHeader(ByteBuffer header, ByteBuffer payload, int generation, long lsn, Checksum crc) {
+        header.clear();
+        header.putInt(payload.remaining());
+        header.putInt(generation);
+        header.putLong(lsn);
+        header.putInt(crc.of(header, 0, payload, payload.position(), payload.remaining()));
+        header.flip();
+    }
+
+    /** Bytes the record takes up in a segment, header included. */
+    public static int size(int length) {
+        return HEADER_SIZE + length;
+    }
+
+    /** Reads the fields of a header the buffer is positioned at. Returns the length, or 0 if it is not ours. */
+    public static int readLength(ByteBuffer header, int generation) {
+        int length = header.getInt(header.position());
+        if (header.getInt(header.position() + GENERATION_OFFSET) != generation) {
+            return 0;
+        }
+        return length;
+    }
+
+    public static long readLsn(ByteBuffer header) {
+        return header.getLong(header.position() + LSN_OFFSET);
+    }
+
+    /** True when the payload (all of what remains of it) is the one the header at its position was written for. */
+    public static boolean isIntact(ByteBuffer header, ByteBuffer payload, Checksum crc) {
+        int expected = header.getInt(header.position() + CRC_OFFSET);
+        return expected == crc.of(header, header.position(), payload, payload.position(), payload.remaining());
+    }
+
+    /**
+     * True when the header at pos (absolute) starts a record written by this generation that fits before limit and
+     * matches its crc. Anything else (zeros, a stale frame, a partial write) ends the segment.
+     */
+    public static boolean isValid(ByteBuffer buf, int pos, int limit, int generation, Checksum crc) {
+        if (limit - pos < HEADER_SIZE) {
+            return false;
+        }
+        int length = buf.getInt(pos);
+        if (length < 1 || length > limit - pos - HEADER_SIZE) {
+            return false;
+        }
+        if (buf.getInt(pos + GENERATION_OFFSET) != generation) {
+            return false;
+        }
+        return buf.getInt(pos + CRC_OFFSET) == crc.of(buf, pos, buf, pos + HEADER_SIZE, length);
+    }
+
+    public static long lsnAt(ByteBuffer buf, int pos) {
+        return buf.getLong(pos + LSN_OFFSET);
+    }
+
+    /** 
+     * Computes frame crcs without moving any buffer. Not thread safe; every reader and writer keeps its own.
+     *
+     * This is CRC32 and not the usually faster CRC32C only because java.util.zip.CRC32C needs Java 9, and the journal
+     * still builds for Java 8. Both are fixed polynomials, but they are different ones, and the polynomial is part of
+     * the on-disk format: switching would make every segment written before look torn at its first record.
+     */
+    static class Checksum {
+        private final CRC32 crc = new CRC32();
+
+        // header is the absolute position of the header fields, payload that of the payload bytes.
+        int of(ByteBuffer headerBuf, int header, ByteBuffer payloadBuf, int payload, int length) {
+            crc.reset();
+            update(headerBuf, header, CRC_OFFSET);
+            update(payloadBuf, payload, length);
+            return (int)crc.getValue();
+        }
+
+        private void update(ByteBuffer buf, int pos, int length) {
+            if (buf.hasArray()) {
+                crc.update(buf.array(), buf.arrayOffset() + pos, length);
+                return;
+            }
+            // direct and mapped buffers are read in place.
+            ByteBuffer src = buf.duplicate();
+            src.limit(pos + length);
+            src.position(pos);
+            crc.update(src);
+        }
+    }
+}
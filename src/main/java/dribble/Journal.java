@@ -1,17 +1,39 @@
 package dribble;
 
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.base.Function;
+import com.google.common.util.concurrent.AbstractFuture;
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.JdkFutureAdapters;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
 import java.io.IOError;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.RejectedExecutionHandler;
@@ -19,6 +41,8 @@ import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -27,22 +51,84 @@ public class Journal {
     
     private final SegmentFactory segmentFactory;
     private final long segmentSize;
+    private final Backpressure backpressure;
+    private final Executor callbackExecutor;
+    private final BufferPool bufferPool; // what borrow() hands out.
+    private final boolean backgroundSync;
+    private final ExecutorService segmentPool; // creates the next segment ahead of time. null when that is off.
+    private Future<Segment> preparedSegment = null; // writer thread only.
+    private final LinkedList<Retired> retiring = new LinkedList<Retired>(); // rolled over, not forced yet. guarded by segmentLock.
     private final Lock segmentLock = new ReentrantLock(true);
     private final Lock receiptLock = new ReentrantLock(true);
     
+    // appends are queued here and written in batches by GroupCommit, which runs on the single writePool thread.
+    private static final int MAX_BATCH = 512;
     private final ThreadPoolExecutor writePool;
-    private final BlockingQueue<Runnable> writeQueue = new LinkedBlockingQueue<Runnable>();
+    private final BlockingQueue<Commit> writeQueue = new LinkedBlockingQueue<Commit>();
+    private final AtomicBoolean commitScheduled = new AtomicBoolean(false);
+    private final Runnable groupCommit = new GroupCommit();
+    private final RingBuffer<Commit> ring; // replaces writeQueue when configured. null otherwise.
+    private ByteBuffer[] gather = new ByteBuffer[MAX_BATCH]; // only ever touched by the writer thread.
+    private long nextSequence = 0; // next lsn. writer thread only once the journal is open.
+    
+    // every record gets an lsn when it is written. these track how far writing and syncing have gotten.
+    private volatile long writtenWatermark = -1;
+    private final Watermark syncedWatermark = new Watermark(-1);
+    
+    // forces the current segment so that the writer never waits on a sync.
+    private final Syncer syncer;
+    private final Thread syncThread;
     private final LinkedList<Segment> oldSegments = new LinkedList<Segment>();
+    private final Reclaimer reclaimer; // gets rid of the segments a mark leaves behind.
+    private final CursorManifest cursorManifest; // null when cursors are not used.
+    private final Map<String, Cursor> cursors = new LinkedHashMap<String, Cursor>(); // guarded by itself.
+    private final JournalMetrics metrics;
     
-    private Segment current = null;
+    private volatile Segment current = null;
     private volatile Receipt newestMarkReceipt = null;
     private volatile Receipt newestReceipt = null; // not used. the idea is that in the future we can mark(latest) without having a reference to the actual receipt.
     
     private volatile int appendsSinceOpen = 0;
     
+    /** 
+     * A journal with every other builder option at its default: the writer syncs inline, creates a segment when it
+     * rolls over, and mark() deletes the segments it leaves behind.
+     */
     public Journal(SegmentFactory segmentFactory, long segmentSize) {
-        this.segmentFactory = segmentFactory;
-        this.segmentSize = segmentSize;
+        this(JournalBuilder.newBuilder().withSegmentFactory(segmentFactory).withSegmentSize(segmentSize));
+    }
+    
+    private Journal(JournalBuilder builder) {
+        this.segmentFactory = builder.segmentFactory;
+        this.segmentSize = builder.segmentSize;
+        this.backpressure = new Backpressure(
+                builder.highWaterBytes, builder.lowWaterBytes,
+                builder.highWaterRecords, builder.lowWaterRecords,
+                builder.backpressurePolicy);
+        this.callbackExecutor = builder.callbackExecutor;
+        this.bufferPool = builder.bufferPool;
+        this.backgroundSync = builder.backgroundSync;
+        this.segmentPool = builder.precreateSegments 
+                ? Executors.newSingleThreadExecutor(new ThreadFactoryBuilder().setDaemon(true).setNameFormat("entrust-segment-prep").build())
+                : null;
+        this.reclaimer = new Reclaimer(segmentFactory, builder.backgroundReclamation, builder.reclaimSegmentsPerSecond);
+        this.cursorManifest = builder.cursorManifest == null ? null : new CursorManifest(builder.cursorManifest);
+        this.metrics = new JournalMetrics(builder.metricRegistry, builder.metricName);
+        metrics.gauge("backlog-records", new Gauge<Integer>() {
+            public Integer getValue() {
+                return getBacklogSize();
+            }
+        });
+        metrics.gauge("backlog-bytes", new Gauge<Long>() {
+            public Long getValue() {
+                return getBacklogBytes();
+            }
+        });
+        metrics.gauge("segments", new Gauge<Integer>() {
+            public Integer getValue() {
+                return oldSegments.size() + (current == null ? 0 : 1);
+            }
+        });
         
         final Thread.UncaughtExceptionHandler uncaughtExceptionHandler = new Thread.UncaughtExceptionHandler() {
                     public void uncaughtException(Thread t, Throwable e) {
@@ -61,15 +147,28 @@ public class Journal {
         this.writePool = new ThreadPoolExecutor(
             1, 1,
             30, TimeUnit.SECONDS, 
-            writeQueue,
+            new LinkedBlockingQueue<Runnable>(),
             commitThreadFactory, 
             commitRejectedExecutionHandler);
         
+        this.ring = builder.ringSize > 0 ? new RingBuffer<Commit>(builder.ringSize, builder.waitStrategy) : null;
+        
+        if (backgroundSync) {
+            syncer = new Syncer();
+            syncThread = new ThreadFactoryBuilder().setDaemon(true).setNameFormat("entrust-sync").setPriority(Thread.NORM_PRIORITY).setUncaughtExceptionHandler(uncaughtExceptionHandler).build().newThread(syncer);
+            syncThread.start();
+        } else {
+            syncer = null;
+            syncThread = null;
+        }
+        
         // position segment
         // set receipt from last mark.
         Receipt latest = null;
         try {
             for (Segment oldSegment : segmentFactory.getSegments()) {
+                // only a segment that was being written when the process died has a tail to look at.
+                oldSegment.repair();
                 if (latest == null) {
                     latest = receiptFor(oldSegment);
                 } else if (oldSegment.getMark() > 0) {
@@ -78,32 +177,164 @@ public class Journal {
                 oldSegments.add(oldSegment);
             }
             newestReceipt = latest;
+            
+            // lsns carry on from the newest record on disk. everything on disk counts as written and synced.
+            nextSequence = newestLsn(oldSegments) + 1;
+            writtenWatermark = nextSequence - 1;
+            syncedWatermark.advance(writtenWatermark);
+            
+            if (cursorManifest != null) {
+                for (Map.Entry<String, Long> saved : cursorManifest.load().entrySet()) {
+                    cursors.put(saved.getKey(), new Cursor(this, saved.getKey(), saved.getValue()));
+                    // a cursor never gets ahead of what was written. handing its lsn out again would make it skip
+                    // a record, whatever happened to the segments.
+                    nextSequence = Math.max(nextSequence, saved.getValue() + 1);
+                }
+                writtenWatermark = nextSequence - 1;
+                syncedWatermark.advance(writtenWatermark);
+            }
         } catch (IOException ex) {
             throw new IOError(ex);
         }
+        
+        // with a ring buffer, the writer thread never goes back to the pool. it polls the ring until shutdown.
+        if (ring != null) {
+            writePool.execute(new RingCommit());
+        }
     }
     
     private static Receipt receiptFor(Segment segment) throws IOException {
-        WriteDetails details = new WriteDetails(segment, segment.getMark());
+        WriteDetails details = new WriteDetails(segment, segment.getMark(), segment.readLsn(segment.getMark()));
         return new Receipt(details, segment.readInt(segment.getMark()));
     }
     
+    // -1 when there are no records at all. the segments have been repaired, so each knows its newest lsn.
+    private static long newestLsn(List<Segment> segments) throws IOException {
+        for (int i = segments.size() - 1; i >= 0; i--) {
+            long newest = segments.get(i).getLastLsn();
+            if (newest >= 0) {
+                return newest;
+            }
+        }
+        return -1;
+    }
+    
     // multiple threads will be calling this.
     public Receipt append(ByteBuffer buf) throws IOException {
-        // todo: block on high water (future feature).
-        int length = buf.remaining();
-        Future<WriteDetails> details = writePool.submit(new Commit(buf));
-        Receipt receipt = new Receipt(details, length);
+        Commit commit = new Commit(buf);
+        backpressure.acquire(commit.length, 1);
+        enqueue(commit);
+        Receipt receipt = new Receipt(commit, syncedWatermark, commit.length, callbackExecutor);
         newestReceipt = receipt;
         appendsSinceOpen += 1; // todo: not threadsafe.
         return receipt;
     }
     
-    // multiple threads can call this and pass in all kinds of garbage.
+    /**
+     * A direct buffer of size bytes (cleared, limit set to size) to fill in place and pass to appendBorrowed(). A
+     * direct record is written without being copied, and the buffer is reused once it has been written.
+     */
+    public ByteBuffer borrow(int size) {
+        return bufferPool.acquire(size);
+    }
+    
+    /** Hands a buffer that came from borrow() back without appending it. */
+    public void release(ByteBuffer buf) {
+        bufferPool.release(buf);
+    }
+    
+    /** 
+     * Appends a buffer that came from borrow(), flipped and ready to read. The journal owns it from here on and hands
+     * it back to the pool once it has been written (or has failed), so it must not be touched after this call, even
+     * if the call throws.
+     */
+    public Receipt appendBorrowed(ByteBuffer buf) throws IOException {
+        Commit commit = new Commit(new ByteBuffer[] { buf }, true);
+        try {
+            backpressure.acquire(commit.length, 1);
+        } catch (IOException ex) {
+            // full, or interrupted while waiting for room. the record never got anywhere.
+            giveBack(commit);
+            throw ex;
+        }
+        enqueue(commit);
+        Receipt receipt = new Receipt(commit, syncedWatermark, commit.length, callbackExecutor);
+        newestReceipt = receipt;
+        appendsSinceOpen += 1; // todo: not threadsafe.
+        return receipt;
+    }
+    
+    /** Same as append(List). */
+    public BatchReceipt append(ByteBuffer... bufs) throws IOException {
+        return append(Arrays.asList(bufs));
+    }
+    
+    /**
+     * Appends every record in one go: they are queued as a single commit, written with one gathering write, and always
+     * end up next to each other in the same segment. The receipt stands for the last record of the batch, and can 
+     * hand out receipts for the others.
+     */
+    public BatchReceipt append(List<ByteBuffer> bufs) throws IOException {
+        if (bufs.isEmpty()) {
+            throw new IllegalArgumentException("Cannot append an empty batch");
+        }
+        Commit commit = new Commit(bufs.toArray(new ByteBuffer[bufs.size()]));
+        backpressure.acquire(commit.length, commit.count());
+        enqueue(commit);
+        BatchReceipt receipt = new BatchReceipt(commit, syncedWatermark, callbackExecutor);
+        newestReceipt = receipt;
+        appendsSinceOpen += commit.count(); // todo: not threadsafe.
+        return receipt;
+    }
+    
+    private void enqueue(Commit commit) {
+        commit.appendedAt = metrics.start();
+        if (ring != null) {
+            try {
+                ring.publish(commit);
+            } catch (RejectedExecutionException ex) {
+                backpressure.release(commit.length, commit.count());
+                giveBack(commit);
+                throw ex;
+            }
+            return;
+        }
+        
+        writeQueue.offer(commit);
+        
+        // only one group commit needs to be pending at a time. it will pick up everything that is queued when it runs.
+        if (commitScheduled.compareAndSet(false, true)) {
+            try {
+                writePool.execute(groupCommit);
+            } catch (RejectedExecutionException ex) {
+                commitScheduled.set(false);
+                if (writeQueue.remove(commit)) {
+                    backpressure.release(commit.length, commit.count());
+                    giveBack(commit);
+                }
+                throw ex;
+            }
+        }
+        
+        // we raced with drain() or close(). if the commit is still queued, nobody is going to write it.
+        if (writePool.isShutdown() && writeQueue.remove(commit)) {
+            backpressure.release(commit.length, commit.count());
+            giveBack(commit);
+            throw new RejectedExecutionException("Cannot commit this item at this time");
+        }
+    }
+    
     public void mark(Receipt receipt) throws IOException {
+        mark(receipt, Durability.WRITTEN);
+    }
+    
+    // multiple threads can call this and pass in all kinds of garbage.
+    // the mark only needs to know where the record is, so waiting for it to be written is usually enough. ask for
+    // SYNCED if the mark must never get ahead of the data on disk.
+    public void mark(Receipt receipt, Durability durability) throws IOException {
         // first, wait for it to be durable.
         try {
-            receipt.await(Long.MAX_VALUE);
+            receipt.await(Long.MAX_VALUE, durability);
         } catch (TimeoutException ex) {
             throw new IOException("Waited too long");
         }
@@ -113,11 +344,120 @@ public class Journal {
             return; 
         }
         
+        long started = metrics.start();
         maybeSwitchReceipts(receipt);
+        metrics.marked(started);
+    }
+    
+    /** 
+     * The cursor with this name, created (at -1, so holding on to every segment) if it does not exist yet. Needs a
+     * cursor manifest, see {@link JournalBuilder#withCursorManifest(java.io.File)}.
+     */
+    public Cursor cursor(String name) throws IOException {
+        if (cursorManifest == null) {
+            throw new IllegalStateException("Journal was built without a cursor manifest");
+        }
+        synchronized (cursors) {
+            Cursor cursor = cursors.get(name);
+            if (cursor == null) {
+                cursor = new Cursor(this, name, -1);
+                cursors.put(name, cursor);
+                saveCursors();
+            }
+            return cursor;
+        }
+    }
+    
+    public Collection<Cursor> getCursors() {
+        synchronized (cursors) {
+            return new ArrayList<Cursor>(cursors.values());
+        }
+    }
+    
+    // saves where every cursor is, then reclaims whatever all of them have passed.
+    void cursorMoved() throws IOException {
+        synchronized (cursors) {
+            saveCursors();
+        }
+        receiptLock.lock();
+        try {
+            Receipt mark = newestMarkReceipt;
+            reclaimPassed(mark == null ? null : mark.details.seg);
+        } finally {
+            receiptLock.unlock();
+        }
+    }
+    
+    // guarded by cursors.
+    private void saveCursors() throws IOException {
+        Map<String, Long> lsns = new LinkedHashMap<String, Long>();
+        for (Cursor cursor : cursors.values()) {
+            lsns.put(cursor.getName(), cursor.getLsn());
+        }
+        cursorManifest.save(lsns);
+    }
+    
+    // Long.MAX_VALUE when there are no cursors, so that only the mark holds segments back.
+    private long slowestCursor() {
+        synchronized (cursors) {
+            long slowest = Long.MAX_VALUE;
+            for (Cursor cursor : cursors.values()) {
+                slowest = Math.min(slowest, cursor.getLsn());
+            }
+            return slowest;
+        }
+    }
+    
+    // bytes of segment after the record with this lsn, up to what has been written.
+    long bytesAfter(long lsn) throws IOException {
+        List<Segment> segments = liveSegments();
+        Segment holding = segmentHolding(lsn + 1, segments);
+        long bytes = 0;
+        for (Segment seg : segments.subList(holding == null ? 0 : segments.indexOf(holding), segments.size())) {
+            long end = seg.getEnd();
+            long pos = seg == holding ? seg.positionAtOrAfter(lsn + 1) : 0;
+            bytes += end - (pos < 0 ? end : pos);
+        }
+        return bytes;
     }
     
     public int getBacklogSize() {
-        return this.writeQueue.size();
+        return ring != null ? ring.size() : this.writeQueue.size();
+    }
+    
+    /** Number of payload bytes that have been appended but not written yet. */
+    public long getBacklogBytes() {
+        return backpressure.getPendingBytes();
+    }
+    
+    /** Lsn of the newest record handed to the OS, -1 if the journal has never been written to. */
+    public long getWrittenWatermark() {
+        return writtenWatermark;
+    }
+    
+    /** Lsn of the newest record known to be fsynced, -1 if the journal has never been written to. */
+    public long getSyncedWatermark() {
+        return syncedWatermark.get();
+    }
+    
+    /** Segments that have been marked off but not deleted (or recycled) yet. */
+    public int getPendingReclamations() {
+        return reclaimer.getPending();
+    }
+    
+    /** Segments deleted (or recycled) since opening. */
+    public long getReclaimedSegments() {
+        return reclaimer.getReclaimed();
+    }
+    
+    /** Segments that could not be deleted since opening. Their files may still be on disk. */
+    public long getFailedReclamations() {
+        return reclaimer.getFailed();
+    }
+    
+    /** Time spent deleting (or recycling) segments since opening. */
+    public long getReclamationMillis() {
+        return reclaimer.getMillisSpent();
     }
     
     public int getAppendsSinceOpen() {
@@ -125,6 +465,10 @@ public class Journal {
     }
     
     public void drain() throws Exception {
+        if (ring != null) {
+            // the writer finishes what was published and then stops.
+            ring.close();
+        }
         writePool.shutdown();
         boolean safe = false;
         Exception willThrow = null;
@@ -139,13 +483,44 @@ public class Journal {
             log.warn("Unsafe commit log drain");
         }
         
+        abandonPending();
+        stopSyncer();
+        discardPreparedSegment();
+        try {
+            if (!reclaimer.drain(5, TimeUnit.MINUTES)) {
+                log.warn("Segments are still being reclaimed");
+            }
+        } catch (InterruptedException ex) {
+            willThrow = ex;
+        }
+        
+        // everything that was written gets synced so that nobody waits on a sync that will never come.
+        if (safe && current != null) {
+            forceRetiring();
+            current.force();
+            syncedWatermark.advance(writtenWatermark);
+        }
+        
         if (willThrow != null)
             throw willThrow;
     }
     
     public void close() throws IOException {
         // stop writing with prejudice.
+        if (ring != null) {
+            ring.close();
+        }
         writePool.shutdownNow();
+        boolean stopped = false;
+        try {
+            stopped = writePool.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        abandonPending();
+        stopSyncer();
+        discardPreparedSegment();
+        reclaimer.close();
         while (oldSegments.size() > 0) {
             try {
                 oldSegments.removeFirst().close();
@@ -156,25 +531,105 @@ public class Journal {
         if (current != null) {
             current.close();
         }
+        
+        // closing forces every segment.
+        if (stopped) {
+            syncedWatermark.advance(writtenWatermark);
+        }
+    }
+    
+    private void stopSyncer() {
+        if (syncer == null) {
+            return;
+        }
+        syncer.stop();
+        try {
+            syncThread.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    // a segment that was created ahead of time but never used should not be left behind.
+    private void discardPreparedSegment() {
+        if (segmentPool == null) {
+            return;
+        }
+        segmentPool.shutdown();
+        if (preparedSegment != null) {
+            try {
+                preparedSegment.get().delete();
+            } catch (Exception ex) {
+                log.warn(ex.getMessage(), ex);
+            }
+            preparedSegment = null;
+        }
+    }
+    
+    // fails anything the writer will never get to.
+    private void abandonPending() {
+        if (ring != null) {
+            abandonRing();
+            return;
+        }
+        Commit commit;
+        while ((commit = writeQueue.poll()) != null) {
+            backpressure.release(commit.length, commit.count());
+            giveBack(commit);
+            commit.failed(new IOException("Journal has been shut down"));
+        }
+    }
+    
+    // the ring only has one consumer. if the writer never stopped, it is still that consumer.
+    private void abandonRing() {
+        if (!writePool.isTerminated()) {
+            log.warn("Writer did not stop, {} commits may never complete", ring.size());
+            return;
+        }
+        List<Commit> abandoned = new ArrayList<Commit>();
+        while (!ring.isDrained()) {
+            if (ring.drainTo(abandoned, MAX_BATCH) == 0) {
+                // claimed before the ring was closed, but not published yet.
+                ring.awaitPublished();
+            }
+        }
+        for (Commit commit : abandoned) {
+            backpressure.release(commit.length, commit.count());
+            giveBack(commit);
+            commit.failed(new IOException("Journal has been shut down"));
+        }
+    }
+    
+    // borrowed buffers go back to the pool once the writer is done with them, whether or not they made it to disk.
+    private void giveBack(Commit commit) {
+        if (commit.borrowed) {
+            for (ByteBuffer buf : commit.bufs) {
+                bufferPool.release(buf);
+            }
+        }
     }
     
     // it is expected that recovery happens during a period where there are no appends happening. The API doesn't
     // prevent you from abusing that expectation, but you are likely to create a race (e.g. recovering FOREVER) if you
     // recover while appends are happening.
     public void recover(JournalObserver observer) throws IOException {
-        // copy the receipt and clone the segments.
-        // todo: handle null receipt.
-        
-        LinkedList<Segment> segments = new LinkedList<Segment>(this.oldSegments);
-        if (current != null) {
-            segments.add(current);
-        }
-        
-        // ignore all the segments before the mark.
-        Receipt mark = newestMarkReceipt;
-        while (mark != null && segments.peek() != mark.details.seg) {
-            segments.removeFirst();
-        }
+        recover(observer, ReadMode.COPY);
+    }
+    
+    public void recover(JournalObserver observer, ReadMode mode) throws IOException {
+        recover(observer, mode, -1);
+    }
+    
+    /** 
+     * Same as recover(observer), but only records after the given lsn are replayed. A consumer that remembers the lsn
+     * of the last record it processed can pick up from there.
+     */
+    public void recover(JournalObserver observer, long afterLsn) throws IOException {
+        recover(observer, ReadMode.COPY, afterLsn);
+    }
+    
+    public void recover(JournalObserver observer, ReadMode mode, long afterLsn) throws IOException {
+        LinkedList<Segment> segments = segmentsToRecover();
         
         // attempt a short circuit to avoid hairy logic to follow.
         if (segments.size() == 0) {
@@ -187,9 +642,9 @@ public class Journal {
         
         // recover the first segment, which is likely to be a partial (use the mark it specifies).
         Segment partial = segments.removeFirst();
-        for (ByteBuffer buf : partial.readFromMark()) {
-            if (firstSkipped) {
-                observer.recover(buf);
+        for (Frame frame : records(partial, partial.getMark(), mode)) {
+            if (firstSkipped && frame.lsn > afterLsn) {
+                deliver(observer, frame);
             }
             firstSkipped = true;
         }
@@ -197,9 +652,9 @@ public class Journal {
         // recover the rest of the segments forcing a soft mark=0.
         while (segments.size() > 0) {
             Segment s = segments.removeFirst();
-            for (ByteBuffer buf : s.readFromMark(0)) {
-                if (firstSkipped) {
-                    observer.recover(buf);
+            for (Frame frame : records(s, 0, mode)) {
+                if (firstSkipped && frame.lsn > afterLsn) {
+                    deliver(observer, frame);
                 }
                 firstSkipped = true;
             }
@@ -209,6 +664,205 @@ public class Journal {
         // something to force that. 
     }
     
+    /**
+     * Same as recover(observer, mode), except that up to parallelism segments are read ahead on the executor while the
+     * observer works through the current one. Records are still delivered in journal order, on the calling thread.
+     * A {@link ConcurrentJournalObserver} is instead fed from the executor threads, one task per segment, so that up
+     * to parallelism segments are replayed at the same time.
+     */
+    public void recover(final JournalObserver observer, final ReadMode mode, Executor executor, int parallelism) throws IOException {
+        final LinkedList<Segment> segments = segmentsToRecover();
+        
+        // find the mark (the first record) up front, so that every segment can be read without waiting on the
+        // segments before it.
+        while (segments.size() > 0 && !records(segments.peek(), segments.peek().getMark(), mode).iterator().hasNext()) {
+            segments.removeFirst();
+        }
+        if (segments.size() == 0) {
+            return;
+        }
+        
+        final List<Segment> toRead = new ArrayList<Segment>(segments);
+        final boolean concurrent = observer instanceof ConcurrentJournalObserver;
+        List<FutureTask<List<Frame>>> tasks = new ArrayList<FutureTask<List<Frame>>>(toRead.size());
+        for (int i = 0; i < toRead.size(); i++) {
+            final Segment seg = toRead.get(i);
+            final long from = i == 0 ? seg.getMark() : 0;
+            final boolean skipFirst = i == 0;
+            tasks.add(new FutureTask<List<Frame>>(new Callable<List<Frame>>() {
+                public List<Frame> call() throws Exception {
+                    List<Frame> read = concurrent ? null : new ArrayList<Frame>();
+                    boolean skipped = !skipFirst;
+                    for (Frame frame : records(seg, from, mode)) {
+                        if (!skipped) {
+                            skipped = true;
+                        } else if (concurrent) {
+                            deliver(observer, frame);
+                        } else {
+                            read.add(frame);
+                        }
+                    }
+                    return read;
+                }
+            }));
+        }
+        
+        int submitted = 0;
+        try {
+            for (int i = 0; i < tasks.size(); i++) {
+                // keep a bounded number of segments in memory ahead of the observer, or being replayed at once.
+                while (submitted < tasks.size() && submitted - i < Math.max(1, parallelism)) {
+                    executor.execute(tasks.get(submitted));
+                    submitted += 1;
+                }
+                List<Frame> read = tasks.get(i).get();
+                if (!concurrent) {
+                    for (Frame frame : read) {
+                        deliver(observer, frame);
+                    }
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted during recovery");
+        } catch (ExecutionException ex) {
+            Throwable realProblem = ex.getCause();
+            if (realProblem instanceof IOException) {
+                throw (IOException)realProblem;
+            } else {
+                throw new IOException(realProblem);
+            }
+        } finally {
+            for (FutureTask<List<Frame>> task : tasks) {
+                task.cancel(false);
+            }
+        }
+    }
+    
+    /**
+     * The record with the given lsn, or null if the journal does not have it (it was marked off, or has not been written
+     * yet). Each segment keeps a sparse index, so this reads a few records at most instead of scanning. Unlike
+     * recovery, this is safe to call while appending.
+     */
+    public ByteBuffer read(long lsn) throws IOException {
+        if (lsn < 0 || lsn > writtenWatermark) {
+            return null;
+        }
+        Segment seg = segmentHolding(lsn, liveSegments());
+        if (seg == null) {
+            return null;
+        }
+        long pos = seg.positionAtOrAfter(lsn);
+        Frame frame = pos < 0 ? null : seg.readAt(pos);
+        return frame != null && frame.lsn == lsn ? frame.payload : null;
+    }
+    
+    /** The record a receipt is for, once it has been written. */
+    public ByteBuffer read(Receipt receipt) throws IOException {
+        return read(receipt.getLsn());
+    }
+    
+    /**
+     * Feeds the observer every record from lsn on (or from the oldest one still around, if lsn was marked off), up to
+     * what had been written when the call started. Like read(), this is safe to call while appending.
+     */
+    public void readFrom(long lsn, JournalObserver observer) throws IOException {
+        long upTo = writtenWatermark;
+        List<Segment> segments = liveSegments();
+        Segment first = segmentHolding(lsn, segments);
+        for (Segment seg : segments.subList(first == null ? 0 : segments.indexOf(first), segments.size())) {
+            long pos = seg == first ? seg.positionAtOrAfter(lsn) : 0;
+            Frame frame = pos < 0 ? null : seg.readAt(pos);
+            while (frame != null && frame.lsn <= upTo) {
+                if (frame.lsn >= lsn) {
+                    deliver(observer, frame);
+                }
+                pos += Frame.size(frame.payload.remaining());
+                frame = seg.readAt(pos);
+            }
+        }
+    }
+    
+    /**
+     * A reader that starts at fromLsn (or at the oldest record still around, if that was marked off) and keeps
+     * following the journal as records get synced. Safe to use while appending, and there can be any number of them.
+     * Unless the journal syncs in the background, the sync policy is only looked at when something is appended, so the
+     * last records before appends stop wait for the next append or drain().
+     */
+    public Tail tail(long fromLsn) {
+        return new Tail(this, fromLsn);
+    }
+    
+    /** A tail that starts right after the receipt's record. The receipt has to have been written. */
+    public Tail tail(Receipt receipt) {
+        long lsn = receipt.getLsn();
+        if (lsn < 0) {
+            throw new IllegalArgumentException("Receipt has not been written yet");
+        }
+        return new Tail(this, lsn + 1);
+    }
+    
+    Watermark synced() {
+        return syncedWatermark;
+    }
+    
+    // every segment that has not been marked off, oldest first.
+    List<Segment> liveSegments() {
+        receiptLock.lock();
+        segmentLock.lock();
+        try {
+            List<Segment> segments = new ArrayList<Segment>(oldSegments);
+            if (current != null) {
+                segments.add(current);
+            }
+            return segments;
+        } finally {
+            segmentLock.unlock();
+            receiptLock.unlock();
+        }
+    }
+    
+    // the newest segment that starts at or before lsn. null if lsn comes before all of them.
+    static Segment segmentHolding(long lsn, List<Segment> segments) {
+        for (int i = segments.size() - 1; i >= 0; i--) {
+            long first = segments.get(i).getFirstLsn();
+            if (first >= 0 && first <= lsn) {
+                return segments.get(i);
+            }
+        }
+        return null;
+    }
+    
+    // the segment that holds the mark and every segment after it.
+    private LinkedList<Segment> segmentsToRecover() {
+        // copy the receipt and clone the segments.
+        // todo: handle null receipt.
+        
+        LinkedList<Segment> segments = new LinkedList<Segment>(this.oldSegments);
+        if (current != null) {
+            segments.add(current);
+        }
+        
+        // ignore all the segments before the mark.
+        Receipt mark = newestMarkReceipt;
+        while (mark != null && segments.peek() != mark.details.seg) {
+            segments.removeFirst();
+        }
+        return segments;
+    }
+    
+    private static Iterable<Frame> records(Segment segment, long from, ReadMode mode) throws IOException {
+        return mode == ReadMode.MAPPED ? segment.mapFramesFromMark(from) : segment.framesFromMark(from);
+    }
+    
+    private static void deliver(JournalObserver observer, Frame frame) {
+        if (observer instanceof SequencedJournalObserver) {
+            ((SequencedJournalObserver)observer).recover(frame.lsn, frame.payload);
+        } else {
+            observer.recover(frame.payload);
+        }
+    }
+    
     // CONCURRENT_ALERT: locking happens here.
     private void maybeSwitchReceipts(Receipt receipt) throws IOException {
         receiptLock.lock();
@@ -222,85 +876,535 @@ public class Journal {
             newestMarkReceipt = receipt;
             // set the new mark.
             newestMarkReceipt.details.seg.mark(newestMarkReceipt.details.pos);
-            // clear the old mark.
-            if (oldMarkReceipt != null) {
+            // clear the old mark, unless the new one just replaced it.
+            if (oldMarkReceipt != null && oldMarkReceipt.details.seg != receipt.details.seg) {
                 oldMarkReceipt.details.seg.mark(0);
             }
             
-            while (oldSegments.size() > 0 && oldSegments.peek() != receipt.details.seg) {
-                try {
-                    Segment old = oldSegments.removeFirst();
-                    old.forget();
-                    old.delete();
-                } catch (IOException ex) {
-                    log.warn(ex.getMessage(), ex);
-                }
-            }
+            // the new mark is durable. getting rid of what came before it can happen later.
+            reclaimPassed(receipt.details.seg);
             // otherwise.
         } finally {
             receiptLock.unlock();
         }
     }
     
+    // hands the reclaimer every segment before stopAt (the one holding the mark, null without a mark) that every cursor
+    // is done with. receiptLock must be held.
+    private void reclaimPassed(Segment stopAt) throws IOException {
+        long slowest = slowestCursor();
+        if (stopAt == null && slowest == Long.MAX_VALUE) {
+            return;
+        }
+        // the newest record stays on disk whatever has passed it, so that lsns carry on from it after a restart. it is
+        // in the current segment once that has been written to, otherwise in the newest old one.
+        Segment newest = current != null && current.getLastLsn() >= 0 ? null : oldSegments.peekLast();
+        while (oldSegments.size() > 0 && oldSegments.peek() != stopAt && oldSegments.peek() != newest
+                && oldSegments.peek().getLastLsn() <= slowest) {
+            reclaimer.reclaim(oldSegments.removeFirst());
+        }
+    }
+    
     // gets called in a single thread context.
     // todo: is syncing even necessary?
     // CONCURRENT_ALERT: locking happens here.
     private void maybeSwitchSegments() throws IOException {
-        if (current == null)
-            current = segmentFactory.next();
+        if (current == null) {
+            Segment first = nextSegment();
+            segmentLock.lock();
+            try {
+                current = first;
+            } finally {
+                segmentLock.unlock();
+            }
+            prepareNextSegment();
+        }
         
         if (current.getFilePointer() > segmentSize) {
+            long started = metrics.start();
+            // with a segment prepared ahead of time, rolling over is just swapping it in.
+            Segment next = takePreparedSegment();
             segmentLock.lock();
             try {
-                current.force();
+                if (syncer != null) {
+                    // the sync thread forces it, so the writer does not have to wait.
+                    retiring.add(new Retired(current, writtenWatermark));
+                } else {
+                    current.force();
+                    syncedWatermark.advance(writtenWatermark);
+                }
                 oldSegments.add(current); 
-                current = segmentFactory.next();
+                current = next;
             } finally {
                 segmentLock.unlock();
             }
+            if (syncer != null) {
+                syncer.request();
+            }
+            prepareNextSegment();
+            metrics.rolledOver(started);
         }
     }
     
-    private class Commit implements Callable<WriteDetails> {
-        private final ByteBuffer buf;
-        public Commit(ByteBuffer buf) {
-            this.buf = buf;
+    private void prepareNextSegment() {
+        if (segmentPool != null) {
+            preparedSegment = segmentPool.submit(new Callable<Segment>() {
+                public Segment call() throws Exception {
+                    return nextSegment();
+                }
+            });
         }
-
-        public WriteDetails call() throws Exception {
-            maybeSwitchSegments();
+    }
+    
+    private Segment takePreparedSegment() throws IOException {
+        Future<Segment> prepared = preparedSegment;
+        preparedSegment = null;
+        if (prepared == null) {
+            return nextSegment();
+        }
+        try {
+            return prepared.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the next segment");
+        } catch (ExecutionException ex) {
+            Throwable realProblem = ex.getCause();
+            if (realProblem instanceof IOException) {
+                throw (IOException)realProblem;
+            } else {
+                throw new IOException(realProblem);
+            }
+        }
+    }
+    
+    private Segment nextSegment() throws IOException {
+        Segment seg = segmentFactory.next();
+        seg.syncInline(!backgroundSync);
+        return seg;
+    }
+    
+    // gets called in a single thread context.
+    private void commit(List<Commit> batch) {
+        int from = 0;
+        while (from < batch.size()) {
+            int to = from;
+            try {
+                maybeSwitchSegments();
+                Segment seg = current;
+                
+                // same rule as appending one at a time: keep going until the segment is over size. a batch appended
+                // in one call is a single commit, so it never gets split.
+                long pointer = seg.getFilePointer();
+                do {
+                    pointer += batch.get(to).frameBytes;
+                    to += 1;
+                } while (to < batch.size() && pointer <= segmentSize);
+                
+                write(seg, batch.subList(from, to));
+            } catch (Throwable th) {
+                if (to == from) {
+                    to = batch.size();
+                }
+                for (Commit commit : batch.subList(from, to)) {
+                    giveBack(commit);
+                    commit.failed(th);
+                }
+            }
+            from = to;
+        }
+    }
+    
+    private void write(Segment seg, List<Commit> commits) throws IOException {
+        int size = 0;
+        for (Commit commit : commits) {
+            size += commit.count();
+        }
+        if (gather.length < size) {
+            gather = new ByteBuffer[size];
+        }
+        int next = 0;
+        for (Commit commit : commits) {
+            System.arraycopy(commit.bufs, 0, gather, next, commit.count());
+            next += commit.count();
+        }
+        long syncs = seg.getSyncCount();
+        long pos;
+        try {
+            pos = seg.append(gather, 0, size, nextSequence);
+        } finally {
+            Arrays.fill(gather, 0, size, null);
+        }
+        // the current segment was just synced, and every segment before it was synced when it was rolled over.
+        boolean syncedInline = syncer == null && seg.getSyncCount() != syncs;
+        long[] appendedAt = metrics.isEnabled() ? new long[commits.size()] : null;
+        int[] records = metrics.isEnabled() ? new int[commits.size()] : null;
+        for (int i = 0; i < commits.size(); i++) {
+            Commit commit = commits.get(i);
+            if (appendedAt != null) {
+                appendedAt[i] = commit.appendedAt;
+                records[i] = commit.count();
+            }
+            // the bytes are in the page cache, so a borrowed buffer can go back to the pool.
+            giveBack(commit);
+            // a commit is known by its last record.
+            pos += commit.frameBytes;
+            nextSequence += commit.count();
+            // before the receipt hears about it, so that read() finds a record its receipt says was written.
+            writtenWatermark = nextSequence - 1;
+            if (syncedInline) {
+                // likewise, so that a receipt that was synced inline says so as soon as await() returns.
+                syncedWatermark.advance(writtenWatermark);
+            }
+            commit.written(new WriteDetails(seg, pos - commit.lastFrameBytes(), nextSequence - 1));
+            metrics.written(commit.appendedAt, commit.lengths, commit.length);
+        }
+        writtenWatermark = nextSequence - 1;
+        metrics.batch(size, appendedAt, records, syncedWatermark, writtenWatermark);
+        
+        if (syncer != null && seg.shouldSync(System.currentTimeMillis())) {
+            syncer.request();
+        }
+    }
+    
+    // forces segments that were rolled over, then syncs the current segment if its sync policy says so.
+    private void syncCurrent() throws IOException {
+        Segment seg;
+        long upTo;
+        
+        // every record up to the written watermark is in this segment, a retiring one, or an older (already forced) one.
+        segmentLock.lock();
+        try {
+            seg = current;
+            upTo = writtenWatermark;
+        } finally {
+            segmentLock.unlock();
+        }
+        
+        // the watermark cannot move past a retiring segment until it has been forced.
+        if (!forceRetiring()) {
+            return;
+        }
+        
+        if (seg != null && seg.shouldSync(System.currentTimeMillis())) {
+            // the sync also covers whatever the writer counted after upTo was read. advancing only to upTo would leave
+            // those records unsynced as far as the watermark knows, with nothing left to make the syncer sync again.
+            syncedWatermark.advance(Math.max(upTo, seg.sync()));
+        }
+    }
+    
+    // returns false if a segment could not be forced. it stays in line to be retried.
+    private boolean forceRetiring() {
+        while (true) {
+            Retired retired;
+            segmentLock.lock();
+            try {
+                retired = retiring.peek();
+            } finally {
+                segmentLock.unlock();
+            }
+            if (retired == null) {
+                return true;
+            }
+            
+            try {
+                retired.seg.force();
+            } catch (ClosedChannelException ex) {
+                // a mark deleted it in the meantime. closing forced it.
+            } catch (IOException ex) {
+                log.error(ex.getMessage(), ex);
+                return false;
+            }
+            syncedWatermark.advance(retired.upTo);
+            
+            segmentLock.lock();
+            try {
+                retiring.removeFirst();
+            } finally {
+                segmentLock.unlock();
+            }
+        }
+    }
+    
+    private static class Retired {
+        private final Segment seg;
+        private final long upTo; // lsn of the last record in the segment.
+        
+        private Retired(Segment seg, long upTo) {
+            this.seg = seg;
+            this.upTo = upTo;
+        }
+    }
+    
+    private class Syncer implements Runnable {
+        private static final long MAX_IDLE = TimeUnit.SECONDS.toNanos(1);
+        private static final long MIN_IDLE = TimeUnit.MICROSECONDS.toNanos(50);
+        private static final long RETRY = TimeUnit.MILLISECONDS.toNanos(1);
+        
+        private final Lock lock = new ReentrantLock();
+        private final Condition wanted = lock.newCondition();
+        private boolean requested = false;
+        private volatile boolean running = true;
+        
+        // the writer calls this when it notices the sync policy has been triggered.
+        void request() {
+            lock.lock();
+            try {
+                requested = true;
+                wanted.signal();
+            } finally {
+                lock.unlock();
+            }
+        }
+        
+        void stop() {
+            running = false;
+            request();
+        }
+        
+        public void run() {
+            while (running) {
+                lock.lock();
+                try {
+                    if (!requested) {
+                        wanted.awaitNanos(untilNextSync());
+                    }
+                    requested = false;
+                } catch (InterruptedException ex) {
+                    return;
+                } finally {
+                    lock.unlock();
+                }
+                
+                if (!running) {
+                    return;
+                }
+                
+                try {
+                    syncCurrent();
+                } catch (IOException ex) {
+                    // a segment that was rolled over (and forced) could have been deleted by a mark in the meantime.
+                    log.warn(ex.getMessage(), ex);
+                }
+            }
+        }
+        
+        // nanos until the time based (or adaptive) trigger fires. when nothing is waiting to be synced, the writer will
+        // ask.
+        private long untilNextSync() {
+            segmentLock.lock();
+            try {
+                if (retiring.size() > 0) {
+                    return RETRY;
+                }
+            } finally {
+                segmentLock.unlock();
+            }
             Segment seg = current;
-            long pos = seg.getFilePointer();
-            seg.append(buf);
-            return new WriteDetails(seg, pos);
+            if (seg == null) {
+                return MAX_IDLE;
+            }
+            long wait = seg.nanosUntilSync(System.currentTimeMillis());
+            if (wait == 0 && !seg.hasUnsyncedWrites()) {
+                return MAX_IDLE;
+            }
+            return Math.max(MIN_IDLE, Math.min(wait, MAX_IDLE));
+        }
+    }
+    
+    private class GroupCommit implements Runnable {
+        private final List<Commit> batch = new ArrayList<Commit>(MAX_BATCH);
+        
+        public void run() {
+            // anything queued after this point schedules another pass.
+            commitScheduled.set(false);
+            while (writeQueue.drainTo(batch, MAX_BATCH) > 0) {
+                writeBatch(batch);
+            }
+        }
+    }
+    
+    // the writer when appends come through the ring buffer. runs until the ring is closed and drained, or until the
+    // writer is interrupted.
+    private class RingCommit implements Runnable {
+        private final List<Commit> batch = new ArrayList<Commit>(MAX_BATCH);
+        
+        public void run() {
+            while (!Thread.currentThread().isInterrupted()) {
+                if (ring.drainTo(batch, MAX_BATCH) > 0) {
+                    writeBatch(batch);
+                } else if (ring.isDrained()) {
+                    return;
+                } else {
+                    ring.awaitPublished();
+                }
+            }
+        }
+    }
+    
+    // writer thread only. clears the batch.
+    private void writeBatch(List<Commit> batch) {
+        try {
+            commit(batch);
+        } finally {
+            long bytes = 0;
+            int records = 0;
+            for (Commit commit : batch) {
+                bytes += commit.length;
+                records += commit.count();
+            }
+            backpressure.release(bytes, records);
+            batch.clear();
+        }
+    }
+    
+    // one record, or a batch of them that gets written together.
+    private static class Commit extends AbstractFuture<WriteDetails> {
+        private final ByteBuffer[] bufs;
+        private final int[] lengths; // taken up front. writing drains the buffers.
+        private final int length; // payload bytes of every record.
+        private final int frameBytes; // what the records take up in a segment.
+        private final boolean borrowed; // the buffers belong to the journal's pool.
+        private long appendedAt; // nanos, only taken with metrics on.
+        
+        public Commit(ByteBuffer buf) {
+            this(new ByteBuffer[] { buf }, false);
+        }
+        
+        public Commit(ByteBuffer[] bufs) {
+            this(bufs, false);
+        }
+        
+        public Commit(ByteBuffer[] bufs, boolean borrowed) {
+            this.bufs = bufs;
+            this.borrowed = borrowed;
+            this.lengths = new int[bufs.length];
+            int length = 0;
+            for (int i = 0; i < bufs.length; i++) {
+                lengths[i] = bufs[i].remaining();
+                length += lengths[i];
+            }
+            this.length = length;
+            this.frameBytes = length + Frame.HEADER_SIZE * bufs.length;
+        }
+        
+        int count() {
+            return bufs.length;
+        }
+        
+        int lastFrameBytes() {
+            return Frame.size(lengths[lengths.length - 1]);
+        }
+        
+        void written(WriteDetails details) {
+            set(details);
+        }
+        
+        void failed(Throwable th) {
+            setException(th);
         }
     }
     
     public static class Receipt implements Comparable<Receipt> {
         private final Future<WriteDetails> futureDetails;
+        private final Watermark synced; // null when being written is as durable as it gets.
+        private final Executor callbackExecutor;
         private WriteDetails details;
         private final int length;
         
         public Receipt(WriteDetails details, int length) {
+            this(new NoOpFuture<WriteDetails>(details), null, length, MoreExecutors.sameThreadExecutor());
             this.details = details;
-            this.length = length;
-            this.futureDetails = new NoOpFuture<WriteDetails>(details);
         }
         
+        // there is no way to know when an arbitrary future gets synced, so being written has to be good enough.
         public Receipt(Future<WriteDetails> futureDetails, int length) {            
+            this(futureDetails, null, length, MoreExecutors.sameThreadExecutor());
+        }
+        
+        private Receipt(Future<WriteDetails> futureDetails, Watermark synced, int length, Executor callbackExecutor) {
             this.futureDetails = futureDetails;
+            this.synced = synced;
             this.length = length;
+            this.callbackExecutor = callbackExecutor;
         }
         
         public int length() { return length; }
         
+        /** The record's log sequence number, or -1 while it has not been written. */
+        public long getLsn() {
+            WriteDetails written = writtenOrNull();
+            return written == null ? -1 : written.lsn;
+        }
+        
         public boolean isDurable() {
             return futureDetails.isDone();
         }
         
+        public boolean isDurable(Durability durability) {
+            if (durability == Durability.WRITTEN || synced == null) {
+                return isDurable();
+            }
+            WriteDetails written = writtenOrNull();
+            return written != null && synced.reached(written.lsn);
+        }
+        
+        /** True once the record has been fsynced, not just handed to the OS. */
+        public boolean isSynced() {
+            return isDurable(Durability.SYNCED);
+        }
+        
+        /** Completes with this receipt once the record has been fsynced. Fails if the write failed. */
+        public ListenableFuture<Receipt> whenSynced() {
+            final Receipt receipt = this;
+            final ListenableFuture<WriteDetails> written = JdkFutureAdapters.listenInPoolThread(futureDetails);
+            if (synced == null) {
+                return Futures.transform(written, new Function<WriteDetails, Receipt>() {
+                    public Receipt apply(WriteDetails input) {
+                        return receipt;
+                    }
+                });
+            }
+            return Futures.transform(written, new AsyncFunction<WriteDetails, Receipt>() {
+                public ListenableFuture<Receipt> apply(WriteDetails input) {
+                    return Futures.transform(synced.when(input.lsn), new Function<Long, Receipt>() {
+                        public Receipt apply(Long position) {
+                            return receipt;
+                        }
+                    });
+                }
+            });
+        }
+        
+        /** Runs the listener on the journal's callback executor once the record is synced or the write has failed. */
+        public void addSyncListener(Runnable listener) {
+            whenSynced().addListener(listener, callbackExecutor);
+        }
+        
+        // non-blocking peek at the write details.
+        private WriteDetails writtenOrNull() {
+            if (details == null && futureDetails.isDone()) {
+                try {
+                    details = futureDetails.get();
+                } catch (Exception ex) {
+                    return null;
+                }
+            }
+            return details;
+        }
+        
         public void await(long millis) throws TimeoutException, IOException {
+            await(millis, Durability.WRITTEN);
+        }
+        
+        // waiting for a sync is a watermark comparison. nobody forces anything on behalf of the caller.
+        public void await(long millis, Durability durability) throws TimeoutException, IOException {
+            long start = System.currentTimeMillis();
             try {
                 details = this.futureDetails.get(millis, TimeUnit.MILLISECONDS);
+                if (durability == Durability.SYNCED && synced != null) {
+                    long elapsed = System.currentTimeMillis() - start;
+                    synced.await(details.lsn, Math.max(0, millis - elapsed));
+                }
             } catch (InterruptedException ex) {
                 throw new RuntimeException(ex);
             } catch (ExecutionException ex) {
@@ -326,17 +1430,242 @@ public class Journal {
                 throw new RuntimeException("Cannot compare non-durable receipts");
             }
             
-            return details.seg.compareTo(o.details.seg);
+            long lsn = writtenOrNull().lsn;
+            long other = o.writtenOrNull().lsn;
+            return lsn < other ? -1 : (lsn == other ? 0 : 1);
+        }
+    }
+    
+    /** 
+     * A receipt for a batch of records. As a receipt, it behaves like the receipt of the last record in the batch: it
+     * is durable once the whole batch is, and marking it marks the entire batch.
+     */
+    public static class BatchReceipt extends Receipt {
+        private final ListenableFuture<WriteDetails> lastDetails;
+        private final Watermark synced;
+        private final Executor callbackExecutor;
+        private final int[] lengths;
+        private final long[] offsets; // from the first record.
+        
+        private BatchReceipt(Commit commit, Watermark synced, Executor callbackExecutor) {
+            super(commit, synced, commit.length, callbackExecutor);
+            this.lastDetails = commit;
+            this.synced = synced;
+            this.callbackExecutor = callbackExecutor;
+            this.lengths = commit.lengths;
+            this.offsets = new long[commit.count()];
+            long offset = 0;
+            for (int i = 0; i < lengths.length; i++) {
+                offsets[i] = offset;
+                offset += Frame.size(lengths[i]);
+            }
+        }
+        
+        /** Number of records in the batch. */
+        public int size() { return lengths.length; }
+        
+        /** Payload bytes of record i. length() is the payload of the whole batch. */
+        public int length(int i) { return lengths[i]; }
+        
+        /** Where record i starts in its segment, or -1 if the batch has not been written. */
+        public long position(int i) {
+            WriteDetails last = detailsOrNull();
+            if (last == null) {
+                return -1;
+            }
+            return last.pos - offsets[lengths.length - 1] + offsets[i];
+        }
+        
+        /** A receipt for record i alone. It can be awaited and marked like the receipt of a single append. */
+        public Receipt get(final int i) {
+            if (i == lengths.length - 1) {
+                return this;
+            }
+            final int fromLast = lengths.length - 1 - i;
+            ListenableFuture<WriteDetails> details = Futures.transform(lastDetails, new Function<WriteDetails, WriteDetails>() {
+                public WriteDetails apply(WriteDetails last) {
+                    return new WriteDetails(last.seg, last.pos - offsets[lengths.length - 1] + offsets[i], last.lsn - fromLast);
+                }
+            });
+            return new Receipt(details, synced, lengths[i], callbackExecutor);
+        }
+        
+        private WriteDetails detailsOrNull() {
+            if (!lastDetails.isDone()) {
+                return null;
+            }
+            try {
+                return lastDetails.get();
+            } catch (Exception ex) {
+                return null;
+            }
         }
     }
     
     public static class WriteDetails {
         private final Segment seg;
         private final long pos;
+        private final long lsn;
         
+        // for a record whose lsn is not known. it sorts before every record with one.
         public WriteDetails(Segment seg, long pos) {
+            this(seg, pos, -1);
+        }
+        
+        public WriteDetails(Segment seg, long pos, long lsn) {
             this.seg = seg;
             this.pos = pos;
+            this.lsn = lsn;
+        }
+        
+        public long getLsn() { return lsn; }
+    }
+    
+    public static class JournalBuilder {
+        private SegmentFactory segmentFactory;
+        private long segmentSize = 0x00100000;
+        private long highWaterBytes = Long.MAX_VALUE;
+        private long lowWaterBytes = Long.MAX_VALUE;
+        private int highWaterRecords = Integer.MAX_VALUE;
+        private int lowWaterRecords = Integer.MAX_VALUE;
+        private BackpressurePolicy backpressurePolicy = BackpressurePolicy.BLOCK;
+        private Executor callbackExecutor = MoreExecutors.sameThreadExecutor();
+        private BufferPool bufferPool = new BufferPool();
+        private boolean backgroundSync = false;
+        private boolean precreateSegments = false;
+        private boolean backgroundReclamation = false;
+        private int ringSize = 0;
+        private WaitStrategy waitStrategy = WaitStrategy.PARK;
+        private double reclaimSegmentsPerSecond = 0;
+        private File cursorManifest = null;
+        private MetricRegistry metricRegistry = null;
+        private String metricName = null;
+        
+        private JournalBuilder() { }
+        
+        public static JournalBuilder newBuilder() {
+            return new JournalBuilder();
+        }
+        
+        public JournalBuilder withSegmentFactory(SegmentFactory segmentFactory) {
+            this.segmentFactory = segmentFactory;
+            return this;
+        }
+        
+        public JournalBuilder withSegmentSize(long l) {
+            this.segmentSize = l;
+            return this;
+        }
+        
+        /** Appends are throttled once this many bytes are waiting to be written, until they drop to lowWater. */
+        public JournalBuilder withBacklogBytes(long highWater, long lowWater) {
+            this.highWaterBytes = highWater;
+            this.lowWaterBytes = lowWater;
+            return this;
+        }
+        
+        /** Appends are throttled once this many records are waiting to be written, until they drop to lowWater. */
+        public JournalBuilder withBacklogRecords(int highWater, int lowWater) {
+            this.highWaterRecords = highWater;
+            this.lowWaterRecords = lowWater;
+            return this;
+        }
+        
+        public JournalBuilder withBackpressurePolicy(BackpressurePolicy policy) {
+            this.backpressurePolicy = policy;
+            return this;
+        }
+        
+        /** 
+         * Where sync listeners run. The default runs them on whichever thread noticed the sync (usually the writer),
+         * so anything more than a quick hand-off belongs on an executor of its own.
+         */
+        public JournalBuilder withCallbackExecutor(Executor executor) {
+            this.callbackExecutor = executor;
+            return this;
+        }
+        
+        /** Where borrow() gets its buffers. Pass the segment factory's staging pool to share one. */
+        public JournalBuilder withBufferPool(BufferPool pool) {
+            this.bufferPool = pool;
+            return this;
+        }
+        
+        /** 
+         * When true, segments are synced by a thread of their own according to their sync policy, and the writer never
+         * waits on a sync. A receipt is then written before it is synced, even when the policy syncs every append, so
+         * wait for {@link Durability#SYNCED} where that matters. When false (the default), the writer syncs inline
+         * after appending, and a receipt is synced by the time it is written if the policy said to sync.
+         */
+        public JournalBuilder withBackgroundSync(boolean b) {
+            this.backgroundSync = b;
+            return this;
+        }
+        
+        /**
+         * When true, the next segment is created and opened on a thread of its own while the current one fills up, so
+         * that rolling over does not stall the writer. There is then always one more segment file than the records
+         * need, preallocated if the factory preallocates, and a crash leaves it to be repaired on the next open. False
+         * by default: the writer creates each segment when it rolls over.
+         */
+        public JournalBuilder withSegmentPrecreation(boolean b) {
+            this.precreateSegments = b;
+            return this;
+        }
+        
+        /**
+         * When true, segments left behind by a mark are forgotten, closed and deleted on a thread of their own, so that
+         * mark() only waits on the new mark being written. When false (the default), mark() does that work, and the
+         * segments are gone by the time it returns.
+         */
+        public JournalBuilder withBackgroundReclamation(boolean b) {
+            this.backgroundReclamation = b;
+            return this;
+        }
+        
+        /** 
+         * Reclaim at most this many segments per second with background reclamation on. Zero (the default) is
+         * unlimited.
+         */
+        public JournalBuilder withReclamationRate(double segmentsPerSecond) {
+            this.reclaimSegmentsPerSecond = segmentsPerSecond;
+            return this;
+        }
+        
+        /**
+         * Keep named cursors (see {@link Journal#cursor(String)}) in this file. Segments are then only reclaimed once
+         * every cursor has passed them. Null (the default) means no cursors.
+         */
+        public JournalBuilder withCursorManifest(File file) {
+            this.cursorManifest = file;
+            return this;
+        }
+        
+        /**
+         * Report append latencies (to written and to synced), batch and record sizes, throughput, backlog, segment
+         * count, and rollover and mark times to the registry, every metric under name. Null (the default) reports
+         * nothing. Journals that share a registry need names of their own.
+         */
+        public JournalBuilder withMetrics(MetricRegistry registry, String name) {
+            this.metricRegistry = registry;
+            this.metricName = name;
+            return this;
+        }
+        
+        /**
+         * Hand appends to the writer through a preallocated ring buffer of this many slots (rounded up to a power of
+         * two) instead of a queue. Producers claim slots without taking a lock, and wait with the given strategy 
+         * while the ring is full. The writer waits the same way while it is empty, so with anything but PARK it keeps
+         * a core busy. Zero (the default) uses the queue.
+         */
+        public JournalBuilder withRingBuffer(int slots, WaitStrategy strategy) {
+            this.ringSize = slots;
+            this.waitStrategy = strategy;
+            return this;
+        }
+        
+        public Journal build() {
+            return new Journal(this);
         }
     }
 }
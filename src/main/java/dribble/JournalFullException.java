@@ -0,0 +1,12 @@
+package dribble;
+
+import java.io.IOException;
+
+/** Thrown by append when the backlog is over its high water mark and the journal is set to fail fast. */
+public class JournalFullException extends IOException {
+    private static final long serialVersionUID = 1L;
+    
+    public JournalFullException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,105 @@
+package dribble;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What a journal reports to a MetricRegistry, every metric under the journal's name. Without a registry every method
+ * does nothing (and start() does not even read the clock), so the journal calls them unconditionally.
+ */
+class JournalMetrics {
+    private final MetricRegistry registry;
+    private final String name;
+
+    private final Timer appendToWritten;
+    private final Timer appendToSynced;
+    private final Timer rollover;
+    private final Timer mark;
+    private final Histogram batchSize;
+    private final Histogram recordSize;
+    private final Meter bytes;
+    private final Meter records;
+
+    JournalMetrics(MetricRegistry registry, String name) {
+        this.registry = registry;
+        this.name = name;
+        boolean on = registry != null;
+        this.appendToWritten = on ? registry.timer(MetricRegistry.name(name, "append-to-written")) : null;
+        this.appendToSynced = on ? registry.timer(MetricRegistry.name(name, "append-to-synced")) : null;
+        this.rollover = on ? registry.timer(MetricRegistry.name(name, "rollover")) : null;
+        this.mark = on ? registry.timer(MetricRegistry.name(name, "mark")) : null;
+        this.batchSize = on ? registry.histogram(MetricRegistry.name(name, "batch-size")) : null;
+        this.recordSize = on ? registry.histogram(MetricRegistry.name(name, "record-size")) : null;
+        this.bytes = on ? registry.meter(MetricRegistry.name(name, "bytes")) : null;
+        this.records = on ? registry.meter(MetricRegistry.name(name, "records")) : null;
+    }
+
+    public boolean isEnabled() {
+        return registry != null;
+    }
+
+    public <T> void gauge(String metric, Gauge<T> gauge) {
+        if (registry != null) {
+            registry.register(MetricRegistry.name(name, metric), gauge);
+        }
+    }
+
+    /** What to hand back to the other methods as the time something started. */
+    public long start() {
+        return registry != null ? System.nanoTime() : 0;
+    }
+
+    /** A commit of these records, appended at appendedAt, was written. Every record gets its own sample. */
+    public void written(long appendedAt, int[] lengths, long length) {
+        if (registry == null) {
+            return;
+        }
+        long took = System.nanoTime() - appendedAt;
+        for (int recordLength : lengths) {
+            appendToWritten.update(took, TimeUnit.NANOSECONDS);
+            recordSize.update(recordLength);
+        }
+        bytes.mark(length);
+        records.mark(lengths.length);
+    }
+
+    /**
+     * A batch of records went out in one write, as commits appended at appendedAt holding this many records each. They
+     * all count as synced once the watermark reaches the batch's last lsn, and every record gets a sample timed from
+     * when its own commit was appended. That is still one listener per write.
+     */
+    public void batch(int size, final long[] appendedAt, final int[] records, Watermark synced, long lastLsn) {
+        if (registry == null) {
+            return;
+        }
+        batchSize.update(size);
+        synced.when(lastLsn).addListener(new Runnable() {
+            public void run() {
+                long now = System.nanoTime();
+                for (int i = 0; i < appendedAt.length; i++) {
+                    for (int j = 0; j < records[i]; j++) {
+                        appendToSynced.update(now - appendedAt[i], TimeUnit.NANOSECONDS);
+                    }
+                }
+            }
+        }, MoreExecutors.sameThreadExecutor());
+    }
+
+    public void rolledOver(long startedAt) {
+        if (registry != null) {
+            rollover.update(System.nanoTime() - startedAt, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    public void marked(long startedAt) {
+        if (registry != null) {
+            mark.update(System.nanoTime() - startedAt, TimeUnit.NANOSECONDS);
+        }
+    }
+}
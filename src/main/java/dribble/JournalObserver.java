@@ -3,5 +3,6 @@ package dribble;
 import java.nio.ByteBuffer;
 
 public interface JournalObserver {
+    /** Called once per recovered record, in journal order. See {@link ReadMode} for who owns the buffer. */
     public void recover(ByteBuffer buf);
 }
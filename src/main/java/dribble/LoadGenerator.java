@@ -0,0 +1,269 @@
+package dribble;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives a journal in a directory the way production traffic would, and reports how it held up. Appends arrive on an
+ * open loop schedule (at a fixed interval, or as a poisson process) whether or not the journal keeps up, and every
+ * latency is measured from when the operation was due, not from when it got to run. A journal that stalls therefore
+ * shows the stall in every operation that was due during it, which is what callers would have seen.
+ *
+ * Reported: append (until append() returns), durable (until the record is synced), mark, and recovery time per gb
+ * over simulated restarts. Run with --help for the options.
+ *
+ *     java -cp dribble.jar:... dribble.LoadGenerator --dir=/data/journal --rate=50000 --size=uniform:100-4096
+ */
+public class LoadGenerator {
+    private static final String USAGE =
+            "usage: LoadGenerator --dir=DIR [options]\n" +
+            "  --rate=N              appends per second (10000)\n" +
+            "  --arrivals=KIND       fixed or poisson (poisson)\n" +
+            "  --size=DIST           fixed:N, uniform:MIN-MAX or exponential:MEAN bytes (fixed:1024)\n" +
+            "  --duration=S          seconds to run (60)\n" +
+            "  --mark-every=MS       mark the newest receipt this often, 0 to never mark (1000)\n" +
+            "  --restart-every=S     close, reopen and recover the journal this often, 0 to never restart (0)\n" +
+            "  --segment-size=N      bytes per segment (67108864)\n" +
+            "  --sync-bytes=N        sync after this many bytes (134217728)\n" +
+            "  --sync-writes=N       sync after this many records (10000)\n" +
+            "  --sync-millis=N       sync after this long (10000)\n" +
+            "  --sync-always=BOOL    sync after every append (false)\n" +
+            "  --sync-target=US      sync adaptively, keeping p99 write to sync under this, 0 for the above (0)\n";
+
+    private static final int SLAB_SIZE = 0x01000000;
+
+    private final File dir;
+    private final double rate;
+    private final boolean poisson;
+    private final String sizes;
+    private final long durationNanos;
+    private final long markEveryMillis;
+    private final long restartEveryNanos;
+    private final long segmentSize;
+    private final SegmentFactory segmentFactory;
+
+    private final Random random = new Random();
+    private final byte[] slab = new byte[SLAB_SIZE];
+
+    private final LatencyHistogram appendMicros = new LatencyHistogram();
+    private final LatencyHistogram durableMicros = new LatencyHistogram();
+    private final LatencyHistogram markMicros = new LatencyHistogram();
+    private final AtomicLong failed = new AtomicLong(0);
+    private long recoveries = 0;
+    private long recoveredBytes = 0;
+    private long recoveryNanos = 0;
+
+    // swapped on every restart. marking and restarting hold the lock on this, so a mark never sees a closed journal.
+    private Journal journal;
+    private volatile Journal.Receipt newest = null;
+
+    LoadGenerator(Map<String, String> options) {
+        if (!options.containsKey("dir")) {
+            throw new IllegalArgumentException("--dir is required");
+        }
+        this.dir = new File(options.get("dir"));
+        this.rate = Double.parseDouble(option(options, "rate", "10000"));
+        this.poisson = "poisson".equals(option(options, "arrivals", "poisson"));
+        this.sizes = option(options, "size", "fixed:1024");
+        this.durationNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(option(options, "duration", "60")));
+        this.markEveryMillis = Long.parseLong(option(options, "mark-every", "1000"));
+        this.restartEveryNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(option(options, "restart-every", "0")));
+        this.segmentSize = Long.parseLong(option(options, "segment-size", "67108864"));
+        this.segmentFactory = FileSegmentFactory.FileSegmentFactoryBuilder
+                .newBuilder()
+                .withDirectory(dir)
+                .withBytesBetweenSync(Long.parseLong(option(options, "sync-bytes", "134217728")))
+                .withWritesBetweenSync(Long.parseLong(option(options, "sync-writes", "10000")))
+                .withMillisBetweenSync(Long.parseLong(option(options, "sync-millis", "10000")))
+                .withSyncAfterEveryAppend(Boolean.parseBoolean(option(options, "sync-always", "false")))
+                .withSyncTarget(Long.parseLong(option(options, "sync-target", "0")))
+                .build();
+        nextSize(); // fail on a bad distribution before anything runs.
+        random.nextBytes(slab);
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<String, String>();
+        for (String arg : args) {
+            if (!arg.startsWith("--")) {
+                System.err.print(USAGE);
+                System.exit(1);
+            }
+            int eq = arg.indexOf('=');
+            options.put(eq < 0 ? arg.substring(2) : arg.substring(2, eq), eq < 0 ? "true" : arg.substring(eq + 1));
+        }
+        if (options.containsKey("help") || !options.containsKey("dir")) {
+            System.err.print(USAGE);
+            System.exit(options.containsKey("help") ? 0 : 1);
+        }
+        if (!new File(options.get("dir")).isDirectory() && !new File(options.get("dir")).mkdirs()) {
+            throw new IOException("Could not create " + options.get("dir"));
+        }
+        LoadGenerator generator = new LoadGenerator(options);
+        generator.run();
+        generator.report(System.out);
+        System.exit(0);
+    }
+
+    void run() throws Exception {
+        journal = new Journal(segmentFactory, segmentSize);
+        ScheduledExecutorService marker = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("load-mark").build());
+        if (markEveryMillis > 0) {
+            final long first = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(markEveryMillis);
+            final AtomicLong marks = new AtomicLong(0);
+            marker.scheduleAtFixedRate(new Runnable() {
+                public void run() {
+                    mark(first + TimeUnit.MILLISECONDS.toNanos(markEveryMillis) * marks.getAndIncrement());
+                }
+            }, markEveryMillis, markEveryMillis, TimeUnit.MILLISECONDS);
+        }
+
+        try {
+            long start = System.nanoTime();
+            long end = start + durationNanos;
+            long nextRestart = restartEveryNanos > 0 ? start + restartEveryNanos : Long.MAX_VALUE;
+            long due = start;
+            while (due < end) {
+                due += interval();
+                long wait = due - System.nanoTime();
+                if (wait > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+                append(due);
+                if (due >= nextRestart) {
+                    // appends that come due while this runs are late, and their latencies will say so.
+                    restart();
+                    nextRestart += restartEveryNanos;
+                }
+            }
+        } finally {
+            marker.shutdownNow();
+            synchronized (this) {
+                journal.drain();
+                journal.close();
+            }
+        }
+    }
+
+    private void append(final long due) throws IOException {
+        int size = nextSize();
+        int offset = random.nextInt(SLAB_SIZE - size + 1);
+        Journal.Receipt receipt = journal.append(ByteBuffer.wrap(slab, offset, size));
+        appendMicros.record((System.nanoTime() - due) / 1000);
+        newest = receipt;
+        Futures.addCallback(receipt.whenSynced(), new FutureCallback<Journal.Receipt>() {
+            public void onSuccess(Journal.Receipt result) {
+                durableMicros.record((System.nanoTime() - due) / 1000);
+            }
+
+            public void onFailure(Throwable t) {
+                failed.incrementAndGet();
+            }
+        }, MoreExecutors.sameThreadExecutor());
+    }
+
+    private synchronized void mark(long due) {
+        Journal.Receipt receipt = newest;
+        if (receipt == null) {
+            return;
+        }
+        try {
+            journal.mark(receipt);
+            markMicros.record((System.nanoTime() - due) / 1000);
+        } catch (IOException ex) {
+            failed.incrementAndGet();
+        }
+    }
+
+    private synchronized void restart() throws Exception {
+        journal.drain();
+        journal.close();
+        newest = null;
+        long started = System.nanoTime();
+        journal = new Journal(segmentFactory, segmentSize);
+        final AtomicLong bytes = new AtomicLong(0);
+        journal.recover(new JournalObserver() {
+            public void recover(ByteBuffer buf) {
+                bytes.addAndGet(buf.remaining());
+            }
+        });
+        recoveryNanos += System.nanoTime() - started;
+        recoveredBytes += bytes.get();
+        recoveries += 1;
+    }
+
+    // nanos until the next append is due.
+    private long interval() {
+        double seconds = poisson ? -Math.log(1.0 - random.nextDouble()) / rate : 1.0 / rate;
+        return (long)(seconds * 1e9);
+    }
+
+    private int nextSize() {
+        String[] dist = sizes.split(":", 2);
+        if (dist.length != 2) {
+            throw new IllegalArgumentException("Bad size distribution " + sizes);
+        }
+        int size;
+        if ("fixed".equals(dist[0])) {
+            size = Integer.parseInt(dist[1]);
+        } else if ("uniform".equals(dist[0])) {
+            String[] range = dist[1].split("-", 2);
+            int min = Integer.parseInt(range[0]);
+            int max = Integer.parseInt(range[1]);
+            size = min + random.nextInt(max - min + 1);
+        } else if ("exponential".equals(dist[0])) {
+            size = (int)Math.round(-Math.log(1.0 - random.nextDouble()) * Integer.parseInt(dist[1]));
+        } else {
+            throw new IllegalArgumentException("Bad size distribution " + sizes);
+        }
+        return Math.max(1, Math.min(size, SLAB_SIZE));
+    }
+
+    LatencyHistogram getAppendMicros() { return appendMicros; }
+    LatencyHistogram getDurableMicros() { return durableMicros; }
+    LatencyHistogram getMarkMicros() { return markMicros; }
+    long getRecoveries() { return recoveries; }
+
+    void report(PrintStream out) {
+        out.println("latencies in microseconds, measured from when each operation was due");
+        out.printf("%-8s %10s %10s %10s %10s %10s %10s %10s%n", "", "count", "mean", "p50", "p90", "p99", "p99.9", "max");
+        report(out, "append", appendMicros);
+        report(out, "durable", durableMicros);
+        report(out, "mark", markMicros);
+        if (failed.get() > 0) {
+            out.printf("failed   %d%n", failed.get());
+        }
+        if (recoveries > 0) {
+            double gb = recoveredBytes / (double)(1L << 30);
+            out.printf("recovery %d runs, %d bytes, %.1f ms per gb%n", recoveries, recoveredBytes,
+                    gb > 0 ? TimeUnit.NANOSECONDS.toMillis(recoveryNanos) / gb : 0.0);
+        }
+    }
+
+    private static void report(PrintStream out, String name, LatencyHistogram histogram) {
+        out.printf("%-8s %10d %10.0f %10d %10d %10d %10d %10d%n", name, histogram.getCount(), histogram.getMean(),
+                histogram.getPercentile(50), histogram.getPercentile(90), histogram.getPercentile(99),
+                histogram.getPercentile(99.9), histogram.getMax());
+    }
+
+    private static String option(Map<String, String> options, String name, String otherwise) {
+        String value = options.get(name);
+        return value == null ? otherwise : value;
+    }
+}
@@ -0,0 +1,229 @@
+package dribble;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOError;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Appends by copying into a memory mapping of the whole segment, so writing a record is not a system call. The file
+ * is mapped up front (which also sizes it on disk) and remapped bigger if a segment goes over. Syncing is
+ * MappedByteBuffer.force(). The unused tail of the file reads as zeros, which ends a segment as far as readers care.
+ */
+public class MappedDataIO implements DataIO {
+    
+    private final File file;
+    private final RandomAccessFile raf;
+    private final FileChannel fc;
+    private final int generation;
+    
+    // the mapping is only replaced or unmapped under the write lock, and everything that touches it holds the read
+    // lock. sync() can come from another thread, and close() can race a writer that did not stop when it was asked
+    // to, and neither may ever see a mapping that has been unmapped. a sync does not hold up a write this way.
+    private final ReadWriteLock mapLock = new ReentrantReadWriteLock();
+    private MappedByteBuffer map;
+    private boolean closed = false;
+    private int position = 0;
+    
+    public MappedDataIO(File f, int generation, long mapSize) throws IOException {
+        this(f, generation, mapSize, false);
+    }
+    
+    public MappedDataIO(File f, int generation, long mapSize, boolean preallocate) throws IOException {
+        if (mapSize > Integer.MAX_VALUE) {
+            throw new IOException("Cannot map more than 2gb per segment");
+        }
+        this.file = f;
+        try {
+            raf = new RandomAccessFile(f, "rw");
+            fc = raf.getChannel();
+        } catch (FileNotFoundException ex) {
+            throw new IOError(ex);
+        }
+        this.generation = generation;
+        if (preallocate) {
+            // mapping only sizes the file. it does not allocate the blocks.
+            Util.preallocate(fc, mapSize);
+        }
+        this.map = fc.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(mapSize, fc.size()));
+    }
+    
+    public void close() throws IOException {
+        mapLock.writeLock().lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            Util.unmap(map);
+            map = null;
+            fc.close();
+            raf.close();
+        } finally {
+            mapLock.writeLock().unlock();
+        }
+    }
+
+    public void sync() throws IOException {
+        mapLock.readLock().lock();
+        try {
+            ensureOpen();
+            map.force();
+        } finally {
+            mapLock.readLock().unlock();
+        }
+    }
+
+    public long position() throws IOException {
+        return position;
+    }
+
+    public void seek(long l) throws IOException {
+        mapLock.readLock().lock();
+        try {
+            ensureOpen();
+            if (l > map.capacity()) {
+                throw new IOException("Cannot seek past the end of the mapping");
+            }
+            position = (int)l;
+        } finally {
+            mapLock.readLock().unlock();
+        }
+    }
+
+    public int write(ByteBuffer buf) throws IOException {
+        int length = buf.remaining();
+        lockToWrite(length);
+        try {
+            map.position(position);
+            map.put(buf);
+        } finally {
+            mapLock.readLock().unlock();
+        }
+        position += length;
+        return length;
+    }
+
+    public long write(ByteBuffer[] bufs, int offset, int length) throws IOException {
+        long total = 0;
+        for (int i = offset; i < offset + length; i++) {
+            total += bufs[i].remaining();
+        }
+        lockToWrite(total);
+        try {
+            map.position(position);
+            for (int i = offset; i < offset + length; i++) {
+                map.put(bufs[i]);
+            }
+        } finally {
+            mapLock.readLock().unlock();
+        }
+        position += total;
+        return total;
+    }
+
+    public int read(ByteBuffer buf) throws IOException {
+        int length = read(buf, position);
+        if (length > 0) {
+            position += length;
+        }
+        return length;
+    }
+
+    public int read(ByteBuffer buf, long position) throws IOException {
+        mapLock.readLock().lock();
+        try {
+            ensureOpen();
+            int available = map.capacity() - (int)Math.min(position, map.capacity());
+            if (available <= 0) {
+                return -1;
+            }
+            int length = Math.min(available, buf.remaining());
+            ByteBuffer src = map.duplicate();
+            src.position((int)position);
+            src.limit((int)position + length);
+            buf.put(src);
+            return length;
+        } finally {
+            mapLock.readLock().unlock();
+        }
+    }
+
+    // a mapping of its own so that closing this one can never pull the memory out from under a reader.
+    public ByteBuffer map() throws IOException {
+        return fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
+    }
+
+    // the mapping has to go first, or the file could not shrink on some platforms.
+    public void truncate(long size) throws IOException {
+        mapLock.writeLock().lock();
+        try {
+            ensureOpen();
+            Util.unmap(map);
+            fc.truncate(size);
+            map = fc.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            position = (int)Math.min(position, size);
+        } finally {
+            mapLock.writeLock().unlock();
+        }
+    }
+
+    public int generation() {
+        return generation;
+    }
+    
+    public void delete() throws IOException {
+        close();
+        if (!file.delete())
+            throw new IOException("Could not delete " + file.getAbsolutePath());
+    }
+    
+    // returns holding the read lock, with room in the mapping for what is about to be written. only the writer grows
+    // the mapping, so the room is still there when it writes.
+    private void lockToWrite(long needed) throws IOException {
+        long required = position + needed;
+        if (required > Integer.MAX_VALUE) {
+            throw new IOException("Cannot map more than 2gb per segment");
+        }
+        mapLock.readLock().lock();
+        if (!closed && required <= map.capacity()) {
+            return;
+        }
+        mapLock.readLock().unlock();
+        grow(required);
+        mapLock.readLock().lock();
+        if (closed) {
+            mapLock.readLock().unlock();
+            throw new ClosedChannelException();
+        }
+    }
+    
+    private void grow(long required) throws IOException {
+        mapLock.writeLock().lock();
+        try {
+            ensureOpen();
+            if (required <= map.capacity()) {
+                return;
+            }
+            long size = Math.min(Math.max(required, (long)map.capacity() * 2), Integer.MAX_VALUE);
+            MappedByteBuffer bigger = fc.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            Util.unmap(map);
+            map = bigger;
+        } finally {
+            mapLock.writeLock().unlock();
+        }
+    }
+    
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new ClosedChannelException();
+        }
+    }
+}
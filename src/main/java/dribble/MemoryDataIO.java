@@ -0,0 +1,186 @@
+package dribble;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A data file that lives in a (heap or direct) buffer, which grows by doubling. Nothing survives the process, but
+ * closing does not throw the data away either: reopen() gives a fresh handle on the same bytes, the way opening a
+ * file again would. Syncing costs whatever the SimulatedDisk says it does.
+ */
+public class MemoryDataIO implements DataIO {
+    private final int generation;
+    private final Contents contents;
+    private final SimulatedDisk disk;
+    
+    // per handle, like a file pointer.
+    private long position = 0;
+    private volatile boolean closed = false;
+    
+    MemoryDataIO(int generation, int capacity, boolean direct, SimulatedDisk disk) {
+        this(generation, new Contents(Math.max(capacity, 1024), direct), disk);
+    }
+    
+    private MemoryDataIO(int generation, Contents contents, SimulatedDisk disk) {
+        this.generation = generation;
+        this.contents = contents;
+        this.disk = disk;
+    }
+    
+    /** Another handle on the same bytes, positioned at the start. */
+    public MemoryDataIO reopen() {
+        return new MemoryDataIO(generation, contents, disk);
+    }
+    
+    public void close() throws IOException {
+        closed = true;
+    }
+
+    public void sync() throws IOException {
+        checkOpen();
+        // outside the lock, so appends carry on while the disk is busy, as they would with a file.
+        disk.sync(contents.unsynced.getAndSet(0));
+    }
+
+    public long position() throws IOException {
+        synchronized (contents) {
+            return position;
+        }
+    }
+
+    public void seek(long l) throws IOException {
+        synchronized (contents) {
+            position = l;
+        }
+    }
+
+    public int write(ByteBuffer buf) throws IOException {
+        return (int)write(new ByteBuffer[] { buf }, 0, 1);
+    }
+
+    public long write(ByteBuffer[] bufs, int offset, int length) throws IOException {
+        checkOpen();
+        synchronized (contents) {
+            long total = 0;
+            for (int i = offset; i < offset + length; i++) {
+                total += bufs[i].remaining();
+            }
+            ByteBuffer dst = contents.reserve(position + total);
+            dst.position((int)position);
+            for (int i = offset; i < offset + length; i++) {
+                dst.put(bufs[i]);
+            }
+            position += total;
+            contents.size = Math.max(contents.size, (int)position);
+            contents.unsynced.addAndGet(total);
+            return total;
+        }
+    }
+
+    public int read(ByteBuffer buf) throws IOException {
+        synchronized (contents) {
+            int read = read(buf, position);
+            if (read > 0) {
+                position += read;
+            }
+            return read;
+        }
+    }
+
+    public int read(ByteBuffer buf, long position) throws IOException {
+        checkOpen();
+        synchronized (contents) {
+            if (position >= contents.size) {
+                return -1;
+            }
+            int length = (int)Math.min(contents.size - position, buf.remaining());
+            ByteBuffer src = contents.data.duplicate();
+            src.limit((int)position + length);
+            src.position((int)position);
+            buf.put(src);
+            return length;
+        }
+    }
+
+    public ByteBuffer map() throws IOException {
+        checkOpen();
+        synchronized (contents) {
+            ByteBuffer view = contents.data.duplicate();
+            view.limit(contents.size);
+            view.position(0);
+            return view.slice().asReadOnlyBuffer();
+        }
+    }
+
+    public void truncate(long size) throws IOException {
+        checkOpen();
+        synchronized (contents) {
+            contents.size = (int)Math.min(contents.size, size);
+            position = Math.min(position, contents.size);
+        }
+    }
+
+    public int generation() {
+        return generation;
+    }
+
+    public void delete() throws IOException {
+        closed = true;
+        synchronized (contents) {
+            contents.data = contents.allocate(0);
+            contents.size = 0;
+            contents.deleted = true;
+        }
+    }
+    
+    /** Whether any handle on these bytes deleted them. */
+    boolean isDeleted() {
+        synchronized (contents) {
+            return contents.deleted;
+        }
+    }
+    
+    private void checkOpen() throws IOException {
+        if (closed) {
+            throw new ClosedChannelException();
+        }
+    }
+    
+    // what every handle on the same "file" shares. guarded by itself.
+    private static class Contents {
+        private final boolean direct;
+        private final AtomicLong unsynced = new AtomicLong(0);
+        private ByteBuffer data;
+        private int size = 0; // what the file length would be.
+        private boolean deleted = false;
+        
+        Contents(int capacity, boolean direct) {
+            this.direct = direct;
+            this.data = allocate(capacity);
+        }
+        
+        // the buffer, grown to hold at least required bytes.
+        ByteBuffer reserve(long required) throws IOException {
+            if (required <= data.capacity()) {
+                return data;
+            }
+            if (required > Integer.MAX_VALUE) {
+                throw new IOException("Cannot hold more than 2gb in a memory segment");
+            }
+            ByteBuffer bigger = allocate((int)Math.min(Math.max(required, (long)data.capacity() * 2), Integer.MAX_VALUE));
+            ByteBuffer old = data.duplicate();
+            old.limit(size);
+            old.position(0);
+            bigger.put(old);
+            bigger.clear();
+            data = bigger;
+            return data;
+        }
+        
+        ByteBuffer allocate(int capacity) {
+            return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package dribble;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Arrays;
+
+/** A meta file in a heap array. Like {@link MemoryDataIO}, it keeps its contents when closed and can be reopened. */
+public class MemoryMetaIO implements MetaIO {
+    private final Contents contents;
+    private final SimulatedDisk disk;
+    private int position = 0;
+    
+    MemoryMetaIO(SimulatedDisk disk) {
+        this(new Contents(), disk);
+    }
+    
+    private MemoryMetaIO(Contents contents, SimulatedDisk disk) {
+        this.contents = contents;
+        this.disk = disk;
+    }
+    
+    /** Another handle on the same bytes, positioned at the start. */
+    public MemoryMetaIO reopen() {
+        return new MemoryMetaIO(contents, disk);
+    }
+    
+    public void close() throws IOException {
+        // nothing to release.
+    }
+
+    public void sync() throws IOException {
+        // a few longs. only the latency counts.
+        disk.sync(0);
+    }
+
+    public void seek(long l) throws IOException {
+        position = (int)l;
+    }
+
+    public void writeLong(long l) throws IOException {
+        synchronized (contents) {
+            if (position + 8 > contents.data.length) {
+                contents.data = Arrays.copyOf(contents.data, Math.max(position + 8, contents.data.length * 2));
+            }
+            for (int i = 7; i >= 0; i--) {
+                contents.data[position++] = (byte)(l >>> (i * 8));
+            }
+            contents.size = Math.max(contents.size, position);
+        }
+    }
+
+    public long readLong() throws IOException {
+        synchronized (contents) {
+            if (position + 8 > contents.size) {
+                throw new EOFException();
+            }
+            long l = 0;
+            for (int i = 0; i < 8; i++) {
+                l = (l << 8) | (contents.data[position++] & 0xff);
+            }
+            return l;
+        }
+    }
+
+    public void delete() throws IOException {
+        synchronized (contents) {
+            contents.data = new byte[0];
+            contents.size = 0;
+        }
+    }
+    
+    // guarded by itself.
+    private static class Contents {
+        private byte[] data = new byte[64];
+        private int size = 0;
+    }
+}
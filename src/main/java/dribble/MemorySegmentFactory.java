@@ -0,0 +1,170 @@
+package dribble;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps segments in memory instead of in files. A journal over this factory behaves like one over files, except for
+ * what a sync costs: nothing, or whatever latency and bandwidth the builder sets, so tests and benchmarks can see how
+ * the journal copes with a slow or fast disk without needing one. Segments outlive the journal that wrote them; a new
+ * journal over the same factory recovers them, the way it would after a restart.
+ */
+public class MemorySegmentFactory implements SegmentFactory {
+    private final long bytesBetweenSync;
+    private final long millisBetweenSync;
+    private final long writesBetweenSync;
+    private final boolean syncAlways;
+    private final AdaptiveSync adaptive; // null unless there is a sync target.
+    private final int capacity;
+    private final boolean direct;
+    private final SimulatedDisk disk;
+    
+    private final AtomicInteger generation = new AtomicInteger(1);
+    
+    // by generation. what a directory listing would find.
+    private final Map<Integer, Stored> stored = new ConcurrentSkipListMap<Integer, Stored>();
+    
+    private MemorySegmentFactory(long bytesBetweenSync, long millisBetweenSync, long writesBetweenSync, boolean syncAlways, long syncTargetMicros, int capacity, boolean direct, SimulatedDisk disk) {
+        this.bytesBetweenSync = bytesBetweenSync;
+        this.millisBetweenSync = millisBetweenSync;
+        this.writesBetweenSync = writesBetweenSync;
+        this.syncAlways = syncAlways;
+        this.adaptive = syncTargetMicros > 0 ? new AdaptiveSync(TimeUnit.MICROSECONDS.toNanos(syncTargetMicros)) : null;
+        this.capacity = capacity;
+        this.direct = direct;
+        this.disk = disk;
+    }
+    
+    public Segment next() throws IOException {
+        int id = generation.getAndIncrement();
+        MemoryDataIO dataIO = new MemoryDataIO(id, capacity, direct, disk);
+        MemoryMetaIO metaIO = new MemoryMetaIO(disk);
+        stored.put(id, new Stored(dataIO, metaIO));
+        Segment segment = Segment.forWrite(dataIO, metaIO);
+        segment.syncAfterBytes(bytesBetweenSync);
+        segment.syncAfterTime(millisBetweenSync);
+        segment.syncAfterWrites(writesBetweenSync);
+        segment.syncAlways(syncAlways);
+        segment.syncAdaptively(adaptive);
+        return segment;
+    }
+
+    public Iterable<Segment> getSegments() throws IOException {
+        List<Segment> segments = new ArrayList<Segment>();
+        for (Map.Entry<Integer, Stored> entry : stored.entrySet()) {
+            Stored s = entry.getValue();
+            if (s.dataIO.isDeleted()) {
+                // the journal deletes a segment it prepared but never used without recycling it.
+                stored.remove(entry.getKey());
+                continue;
+            }
+            segments.add(Segment.forRead(s.dataIO.reopen(), s.metaIO.reopen()));
+        }
+        return segments;
+    }
+
+    public void recycle(Segment segment) throws IOException {
+        stored.remove(segment.generation());
+        segment.delete();
+    }
+    
+    private static class Stored {
+        private final MemoryDataIO dataIO;
+        private final MemoryMetaIO metaIO;
+        
+        Stored(MemoryDataIO dataIO, MemoryMetaIO metaIO) {
+            this.dataIO = dataIO;
+            this.metaIO = metaIO;
+        }
+    }
+    
+    public static class MemorySegmentFactoryBuilder {
+        private long bytesBetweenSync = 0x0000000008000000;
+        private long millisBetweenSync = 10000;
+        private long writesBetweenSync = 10000;
+        private boolean syncAlways = false;
+        private long syncTargetMicros = 0;
+        private int capacity = 0x00100000;
+        private boolean direct = false;
+        private long syncLatencyMicros = 0;
+        private long syncBytesPerSecond = 0;
+        
+        private MemorySegmentFactoryBuilder() { }
+        
+        public static MemorySegmentFactoryBuilder newBuilder() {
+            return new MemorySegmentFactoryBuilder();
+        }
+        
+        public MemorySegmentFactoryBuilder withBytesBetweenSync(long l) {
+            this.bytesBetweenSync = l;
+            return this;
+        }
+        
+        public MemorySegmentFactoryBuilder withMillisBetweenSync(long l) {
+            this.millisBetweenSync = l;
+            return this;
+        }
+        
+        public MemorySegmentFactoryBuilder withWritesBetweenSync(long l) {
+            this.writesBetweenSync = l;
+            return this;
+        }
+        
+        public MemorySegmentFactoryBuilder withSyncAfterEveryAppend(boolean b) {
+            this.syncAlways = b;
+            return this;
+        }
+        
+        /** 
+         * Instead of syncing after fixed amounts of bytes, writes or time, sync as rarely as still gets 99% of writes
+         * synced within this many microseconds of being written, going by what recent syncs cost and how fast records
+         * arrive. The other sync settings are ignored. Zero (the default) keeps them.
+         */
+        public MemorySegmentFactoryBuilder withSyncTarget(long micros) {
+            this.syncTargetMicros = micros;
+            return this;
+        }
+        
+        /** 
+         * Bytes every new segment starts out with room for (1mb by default). A segment that runs over grows by 
+         * doubling, so the journal's segment size avoids copying.
+         */
+        public MemorySegmentFactoryBuilder withCapacity(int bytes) {
+            this.capacity = bytes;
+            return this;
+        }
+        
+        /** Keep segments in direct buffers instead of on the heap. False by default. */
+        public MemorySegmentFactoryBuilder withDirectBuffers(boolean b) {
+            this.direct = b;
+            return this;
+        }
+        
+        /** How long every sync (of data or meta) takes before it counts as done. Zero (the default) is free. */
+        public MemorySegmentFactoryBuilder withSyncLatency(long micros) {
+            this.syncLatencyMicros = micros;
+            return this;
+        }
+        
+        /** 
+         * How fast a data sync writes out what was appended since the last one, on top of the latency. Zero (the
+         * default) writes any amount in no time.
+         */
+        public MemorySegmentFactoryBuilder withSyncBandwidth(long bytesPerSecond) {
+            this.syncBytesPerSecond = bytesPerSecond;
+            return this;
+        }
+        
+        public SegmentFactory build() {
+            SimulatedDisk disk = syncLatencyMicros == 0 && syncBytesPerSecond == 0
+                    ? SimulatedDisk.NONE
+                    : new SimulatedDisk(TimeUnit.MICROSECONDS.toNanos(syncLatencyMicros), syncBytesPerSecond);
+            return new MemorySegmentFactory(bytesBetweenSync, millisBetweenSync, writesBetweenSync, syncAlways, syncTargetMicros, capacity, direct, disk);
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package dribble;
+
+/** How recovery hands records to a {@link JournalObserver}. */
+public enum ReadMode {
+    /** Every record is read into a freshly allocated heap buffer that the observer owns. */
+    COPY,
+    
+    /** 
+     * Segments are mapped read-only and every record is a read-only slice of the mapping. Nothing is copied or
+     * allocated per record, so replay runs at memory speed. The observer does not own the buffer: it must not
+     * assume the contents stay valid after the segment is deleted, and anything it keeps past the call to
+     * recover() should be copied first (see {@link Util#copy(java.nio.ByteBuffer)}).
+     */
+    MAPPED
+}
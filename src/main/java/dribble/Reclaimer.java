@@ -0,0 +1,125 @@
+package dribble;
+
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Gets rid of segments that were marked off: forgets them, closes them (which forces them) and hands them back to the
+ * segment factory. All of that is a handful of syncs and an unlink, so by default it happens on a thread of its own,
+ * optionally limited to a number of segments per second so that it does not compete with the writer for the disk.
+ */
+class Reclaimer {
+    private static final Logger log = LoggerFactory.getLogger(Reclaimer.class);
+
+    private final SegmentFactory segmentFactory;
+    private final RateLimiter limiter; // null when unlimited.
+    private final ExecutorService pool; // null when reclaiming inline.
+
+    private final AtomicInteger pending = new AtomicInteger(0);
+    private final AtomicLong reclaimed = new AtomicLong(0);
+    private final AtomicLong failed = new AtomicLong(0);
+    private final AtomicLong nanosSpent = new AtomicLong(0);
+
+    Reclaimer(SegmentFactory segmentFactory, boolean background, double segmentsPerSecond) {
+        this.segmentFactory = segmentFactory;
+        this.limiter = segmentsPerSecond > 0 ? RateLimiter.create(segmentsPerSecond) : null;
+        this.pool = background
+                ? new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+                        new ThreadFactoryBuilder().setDaemon(true).setNameFormat("entrust-reclaim").build())
+                : null;
+    }
+
+    /** Segments waiting to be reclaimed. */
+    public int getPending() { return pending.get(); }
+    /** Segments that have been handed back to the factory. */
+    public long getReclaimed() { return reclaimed.get(); }
+    /** Segments that could not be reclaimed. Their files may still be on disk. */
+    public long getFailed() { return failed.get(); }
+    /** Time spent reclaiming, not counting time spent waiting on the rate limit. */
+    public long getMillisSpent() { return TimeUnit.NANOSECONDS.toMillis(nanosSpent.get()); }
+
+    // once the pool has been shut down, the caller does the work.
+    public void reclaim(Segment segment) {
+        pending.incrementAndGet();
+        if (pool != null) {
+            try {
+                pool.execute(new Reclamation(segment));
+                return;
+            } catch (RejectedExecutionException ex) {
+                // fall through.
+            }
+        }
+        reclaimNow(segment);
+    }
+
+    /** Finishes everything that has been queued. Returns false if that took longer than the timeout. */
+    public boolean drain(long timeout, TimeUnit unit) throws InterruptedException {
+        if (pool == null) {
+            return true;
+        }
+        pool.shutdown();
+        return pool.awaitTermination(timeout, unit);
+    }
+
+    /** Stops reclaiming. Segments that were still waiting are closed and left on disk. */
+    public void close() {
+        if (pool == null) {
+            return;
+        }
+        for (Runnable r : pool.shutdownNow()) {
+            Segment segment = ((Reclamation)r).segment;
+            pending.decrementAndGet();
+            try {
+                segment.close();
+            } catch (IOException ex) {
+                log.warn(ex.getMessage(), ex);
+            }
+        }
+        try {
+            pool.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void reclaimNow(Segment segment) {
+        long start = System.nanoTime();
+        try {
+            segment.forget();
+            segmentFactory.recycle(segment);
+            reclaimed.incrementAndGet();
+        } catch (IOException ex) {
+            failed.incrementAndGet();
+            log.warn(ex.getMessage(), ex);
+        } finally {
+            nanosSpent.addAndGet(System.nanoTime() - start);
+            pending.decrementAndGet();
+        }
+    }
+
+    private class Reclamation implements Runnable {
+        private final Segment segment;
+
+        private Reclamation(Segment segment) {
+            this.segment = segment;
+        }
+
+        public void run() {
+            if (limiter != null) {
+                limiter.acquire();
+            }
+            reclaimNow(segment);
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package dribble;
+
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A preallocated queue for many producers and exactly one consumer. A producer claims a sequence with one atomic
+ * increment, waits (per the wait strategy) for its slot to be free, and publishes by writing the slot. Publishing does
+ * not allocate. The consumer takes published slots in sequence order, as many as it likes at once.
+ */
+class RingBuffer<T> {
+    // set in the claim counter once the ring is closed. nothing can be claimed after that.
+    private static final long CLOSED = Long.MIN_VALUE;
+    private static final long MAX_CONSUMER_PARK = TimeUnit.MILLISECONDS.toNanos(100);
+    
+    private final AtomicReferenceArray<T> slots;
+    private final int mask;
+    private final WaitStrategy waitStrategy;
+    
+    private final AtomicLong claimed = new AtomicLong(0);
+    private volatile long consumed = 0; // slots before this are free again. only the consumer writes it.
+    
+    // lets producers wake up a parked consumer.
+    private volatile Thread consumer = null;
+    private volatile boolean consumerParked = false;
+    
+    RingBuffer(int size, WaitStrategy waitStrategy) {
+        int capacity = 1;
+        while (capacity < size) {
+            capacity <<= 1;
+        }
+        this.slots = new AtomicReferenceArray<T>(capacity);
+        this.mask = capacity - 1;
+        this.waitStrategy = waitStrategy;
+    }
+    
+    public int capacity() {
+        return mask + 1;
+    }
+    
+    // multiple threads will be calling this. waits while the ring is full.
+    public void publish(T item) {
+        long seq;
+        while (true) {
+            long c = claimed.get();
+            if ((c & CLOSED) != 0) {
+                throw new RejectedExecutionException("Cannot commit this item at this time");
+            }
+            if (claimed.compareAndSet(c, c + 1)) {
+                seq = c;
+                break;
+            }
+        }
+        while (seq - consumed >= capacity()) {
+            waitStrategy.idle();
+        }
+        slots.set((int)seq & mask, item);
+        if (consumerParked) {
+            LockSupport.unpark(consumer);
+        }
+    }
+    
+    /** 
+     * Stops anything more from being claimed. What was already claimed still gets published, so the consumer should
+     * keep going until isDrained().
+     */
+    public void close() {
+        while (true) {
+            long c = claimed.get();
+            if ((c & CLOSED) != 0 || claimed.compareAndSet(c, c | CLOSED)) {
+                break;
+            }
+        }
+        Thread t = consumer;
+        if (t != null) {
+            LockSupport.unpark(t);
+        }
+    }
+    
+    public boolean isClosed() {
+        return (claimed.get() & CLOSED) != 0;
+    }
+    
+    /** True once the ring is closed and everything claimed before that has been consumed. */
+    public boolean isDrained() {
+        return isClosed() && consumed == (claimed.get() & ~CLOSED);
+    }
+    
+    public int size() {
+        return (int)((claimed.get() & ~CLOSED) - consumed);
+    }
+    
+    // consumer only. takes up to max published items, in order, and stops at the first one not published yet.
+    public int drainTo(List<T> into, int max) {
+        long seq = consumed;
+        int taken = 0;
+        while (taken < max) {
+            int index = (int)seq & mask;
+            T item = slots.get(index);
+            if (item == null) {
+                break;
+            }
+            slots.lazySet(index, null);
+            into.add(item);
+            seq += 1;
+            taken += 1;
+        }
+        if (taken > 0) {
+            consumed = seq;
+        }
+        return taken;
+    }
+    
+    // consumer only. called when drainTo() came up empty.
+    public void awaitPublished() {
+        if (waitStrategy != WaitStrategy.PARK) {
+            waitStrategy.idle();
+            return;
+        }
+        consumer = Thread.currentThread();
+        consumerParked = true;
+        try {
+            // a producer that published before the flag went up did not unpark anyone.
+            if (slots.get((int)consumed & mask) == null && !isClosed()) {
+                LockSupport.parkNanos(MAX_CONSUMER_PARK);
+            }
+        } finally {
+            consumerParked = false;
+        }
+    }
+}
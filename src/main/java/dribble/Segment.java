@@ -1,32 +1,83 @@
 package dribble;
 
+import com.codahale.metrics.Timer;
+import com.google.common.base.Function;
+import com.google.common.collect.Iterables;
+
+import java.io.EOFException;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
-/** Not designed to be thread safe. Only use by a single executor. */
+/** 
+ * Not designed to be thread safe. Only use by a single executor. The one exception is sync(), which a background
+ * thread may call while the writer keeps appending.
+ */
 public class Segment implements Comparable<Segment> {
+    private static final Logger log = LoggerFactory.getLogger(Segment.class);
     private static final long FORGET = -1;
-    private ByteBuffer LENGTH_BUF = ByteBuffer.wrap(new byte[4]);
+    private static final long UNSEALED = -1;
+    
+    // the meta file is [long mark][long end][long last lsn][index]. the rest is only written once the data is forced,
+    // and the end is cleared before anything else gets appended, so a sealed segment never needs its records scanned.
+    private static final long SEAL_OFFSET = 8;
+    
+    // bytes of records between two index entries. a lookup reads at most about this much past the entry it starts at.
+    private static final int INDEX_INTERVAL = 0x00010000;
+    private ByteBuffer HEADER_BUF = ByteBuffer.wrap(new byte[Frame.HEADER_SIZE]);
+    
+    // reused by append() so that a batch does not allocate a header per record.
+    private final List<ByteBuffer> headerBufs = new ArrayList<ByteBuffer>();
+    private ByteBuffer[] frames = new ByteBuffer[2];
+    private final Frame.Checksum crc = new Frame.Checksum();
     
     private final DataIO dataIO;
     private final MetaIO meta;
     
-    private volatile long bytesSinceLastSync = 0;
-    private volatile long writesSinceSync = 0;
+    // the meta file is written with seek and write, from the writer (clearing the seal), the syncer (sealing on a
+    // force), whoever marks and the reclaimer (forgetting). every seek and the writes after it happen under this lock,
+    // or a mark could land in the seal or the other way around.
+    private final Object metaLock = new Object();
+    
+    private final AtomicLong bytesSinceLastSync = new AtomicLong(0);
+    private final AtomicLong writesSinceSync = new AtomicLong(0);
     private volatile long lastSync = System.currentTimeMillis();
+    private final AtomicLong oldestUnsynced = new AtomicLong(0); // System.nanoTime() of the oldest unsynced write.
+    private final AtomicLong syncCount = new AtomicLong(0);
     
     private long mark = 0;
     private long filePointer = 0;
+    private volatile long lastLsn = -1; // of the newest record appended through this instance, or found by repair().
+    private long sealedEnd = UNSEALED;
+    private boolean appended = false;
+    private final SparseIndex index = new SparseIndex();
     
     // reasons to sync.
     private long syncAfterBytes = 0x0000000008000000; // 128mb
     private long syncAfterTime = 10000; // 10s
     private long syncAfterWrites = 10000;
     private boolean alwaysSync = false;
+    private boolean syncInline = true;
+    private AdaptiveSync adaptive = null; // replaces the reasons above when set.
+    
+    // how long syncs and forces take. null when nobody is measuring.
+    private Timer syncTimer = null;
+    private Timer forceTimer = null;
     
     public static Segment forWrite(DataIO output, MetaIO meta) throws IOException {
         Segment seg = new Segment(output, meta);
+        synchronized (seg.metaLock) {
+            seg.writeSeal(UNSEALED, -1);
+        }
         seg.mark(0);
         return seg;
     }
@@ -40,7 +91,7 @@ public class Segment implements Comparable<Segment> {
             }
 
             @Override
-            public void append(ByteBuffer buf) throws IOException {
+            public long append(ByteBuffer[] bufs, int offset, int length) throws IOException {
                 throw new IOException("Read only mode!");
             }
         };
@@ -61,11 +112,23 @@ public class Segment implements Comparable<Segment> {
     public void syncAfterWrites(long thisMany) { syncAfterWrites = thisMany; }
     public void syncAfterTime(long millis) { syncAfterTime = millis; }
     public void syncAlways(boolean b) { alwaysSync = b; }
+    /** Sync when the policy says so instead of after fixed amounts of bytes, writes or time. */
+    void syncAdaptively(AdaptiveSync policy) { adaptive = policy; }
+    /** When false, append() leaves syncing to whoever is watching shouldSync(). */
+    public void syncInline(boolean b) { syncInline = b; }
     public int generation() { return dataIO.generation(); }
+    /** Time every data sync (including the one force() does) and every force. Either may be null. */
+    public void timeSyncs(Timer syncs, Timer forces) {
+        this.syncTimer = syncs;
+        this.forceTimer = forces;
+    }
     
     public long getFilePointer() { return filePointer; }
     public long getMark() { return mark; }
     
+    /** Goes up every time the data file is synced. Lets a caller find out if an append caused a sync. */
+    public long getSyncCount() { return syncCount.get(); }
+    
     public void close() throws IOException {
         force();
         dataIO.close();
@@ -73,13 +136,83 @@ public class Segment implements Comparable<Segment> {
     }
     
     public void force() throws IOException {
-        dataIO.sync();
+        long started = forceTimer == null ? 0 : System.nanoTime();
+        sync();
+        synchronized (metaLock) {
+            if (appended && sealedEnd == UNSEALED) {
+                writeSeal(filePointer, lastLsn);
+            }
+        }
         meta.sync();
+        if (forceTimer != null) {
+            forceTimer.update(System.nanoTime() - started, TimeUnit.NANOSECONDS);
+        }
+    }
+    
+    /** Where the records end: the file pointer while appending, the recorded end of a sealed or repaired segment. */
+    public long getEnd() { return appended ? filePointer : Math.max(sealedEnd, 0); }
+    
+    /** Lsn of the newest record in the segment, or -1 if there is none. Only known after appending or repair(). */
+    public long getLastLsn() { return lastLsn; }
+    
+    /**
+     * Finds where the records of a segment that was not closed cleanly end, and cuts off whatever comes after them:
+     * the torn frame of a write a crash interrupted, or anything else that does not check out. The scan starts at the
+     * mark when there is a good record there, so only the tail of the segment gets read. A segment that was closed
+     * cleanly recorded its end, and costs nothing. Returns the position records end at.
+     */
+    public long repair() throws IOException {
+        if (sealedEnd != UNSEALED) {
+            return sealedEnd;
+        }
+        ByteBuffer mapped = dataIO.map();
+        int limit = mapped.limit();
+        int pos = mark > 0 && mark < limit && Frame.isValid(mapped, (int)mark, limit, generation(), crc) ? (int)mark : 0;
+        if (pos > 0 && Frame.isValid(mapped, 0, limit, generation(), crc)) {
+            index.add(Frame.lsnAt(mapped, 0), 0);
+        }
+        while (Frame.isValid(mapped, pos, limit, generation(), crc)) {
+            lastLsn = Frame.lsnAt(mapped, pos);
+            maybeIndex(lastLsn, pos);
+            pos += Frame.size(mapped.getInt(pos));
+        }
+        boolean torn = false;
+        for (int i = pos; i < Math.min(limit, pos + Frame.HEADER_SIZE) && !torn; i++) {
+            torn = mapped.get(i) != 0;
+        }
+        if (mapped instanceof MappedByteBuffer) {
+            Util.unmap((MappedByteBuffer)mapped);
+        }
+        if (torn) {
+            log.warn("Dropping {} bytes after the last good record in segment {}", limit - pos, generation());
+        }
+        if (pos < limit) {
+            dataIO.truncate(pos);
+            dataIO.sync();
+        }
+        synchronized (metaLock) {
+            writeSeal(pos, lastLsn);
+        }
+        meta.sync();
+        return pos;
+    }
+    
+    // callers hold metaLock.
+    private void writeSeal(long end, long lsn) throws IOException {
+        meta.seek(SEAL_OFFSET);
+        meta.writeLong(end);
+        meta.writeLong(lsn);
+        if (end != UNSEALED) {
+            index.writeTo(meta);
+        }
+        sealedEnd = end;
     }
     
     public void mark(long pos) throws IOException {
-        meta.seek(0);
-        meta.writeLong(pos);
+        synchronized (metaLock) {
+            meta.seek(0);
+            meta.writeLong(pos);
+        }
         meta.sync();
         this.mark = pos;
     }
@@ -112,27 +245,160 @@ public class Segment implements Comparable<Segment> {
         return Util.readInt(buf);
     }
     
+    /** The lsn in the header of the record at position. */
+    public long readLsn(long position) throws IOException {
+        dataIO.seek(position);
+        this.filePointer = position;
+        ByteBuffer buf = ByteBuffer.allocate(Frame.HEADER_SIZE);
+        while (buf.hasRemaining()) {
+            if (dataIO.read(buf) < 0) {
+                throw new IOException("EOF");
+            }
+        }
+        buf.flip();
+        return Frame.readLsn(buf);
+    }
+    
     public void append(ByteBuffer buf) throws IOException {
+        append(new ByteBuffer[] { buf }, 0, 1);
+    }
+    
+    /** Numbers the records after the last one this segment appended (from 0 for a new one). */
+    public long append(ByteBuffer[] bufs, int offset, int length) throws IOException {
+        return append(bufs, offset, length, lastLsn + 1);
+    }
+    
+    // writes every record in a single gathering write and only considers syncing once for the whole batch. the records
+    // get consecutive lsns, starting at firstLsn. returns the position of the first record.
+    public long append(ByteBuffer[] bufs, int offset, int length, long firstLsn) throws IOException {
         long now = System.currentTimeMillis();
-        long remaining = buf.remaining();
+        long nowNanos = System.nanoTime(); // a write's age counts from when it was asked for, not from when it is done.
+        long start = filePointer;
+        boolean unsealed = false;
+        synchronized (metaLock) {
+            if (sealedEnd != UNSEALED) {
+                // a crash from here on could leave a torn tail past the end the seal claims.
+                writeSeal(UNSEALED, -1);
+                unsealed = true;
+            }
+        }
+        if (unsealed) {
+            meta.sync();
+        }
         
-        LENGTH_BUF.clear();
-        LENGTH_BUF.putInt((int)remaining);
-        LENGTH_BUF.flip();
-        writeFully(LENGTH_BUF, 4);
-        writeFully(buf, buf.remaining());
+        if (frames.length < length * 2) {
+            frames = new ByteBuffer[length * 2];
+        }
+        long remaining = 0;
+        for (int i = 0; i < length; i++) {
+            ByteBuffer buf = bufs[offset + i];
+            frames[i * 2] = headerBuf(i, buf, firstLsn + i);
+            frames[i * 2 + 1] = buf;
+            maybeIndex(firstLsn + i, start + remaining + Frame.HEADER_SIZE * i);
+            remaining += buf.remaining();
+        }
+        try {
+            writeFully(frames, length * 2, remaining + Frame.HEADER_SIZE * length);
+        } finally {
+            // don't hang on to the callers buffers.
+            Arrays.fill(frames, 0, length * 2, null);
+        }
         filePointer = dataIO.position();
+        lastLsn = firstLsn + length - 1;
+        appended = true;
         
-        bytesSinceLastSync += remaining;
-        writesSinceSync += 1;
+        bytesSinceLastSync.addAndGet(remaining);
+        if (writesSinceSync.getAndAdd(length) == 0) {
+            oldestUnsynced.set(nowNanos);
+        }
         
-        maybeSync(now);
+        if (syncInline) {
+            maybeSync(now);
+        }
+        return start;
+    }
+    
+    private void maybeIndex(long lsn, long position) {
+        long last = index.lastPosition();
+        if (last < 0 || position - last >= INDEX_INTERVAL) {
+            index.add(lsn, position);
+        }
+    }
+    
+    /** Lsn of the first record, or -1 if there is none (or the segment predates the index). */
+    public long getFirstLsn() { return index.firstLsn(); }
+    
+    /**
+     * Reads the record at position without touching the file pointer, so it is safe to call while the writer appends.
+     * Returns null if there is no intact record of this segment there.
+     */
+    Frame readAt(long position) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(Frame.HEADER_SIZE);
+        if (!readFullyAt(header, position)) {
+            return null;
+        }
+        header.flip();
+        int length = Frame.readLength(header, generation());
+        if (length < 1) {
+            return null;
+        }
+        ByteBuffer payload = ByteBuffer.allocate(length);
+        if (!readFullyAt(payload, position + Frame.HEADER_SIZE)) {
+            return null;
+        }
+        payload.flip();
+        if (!Frame.isIntact(header, payload, new Frame.Checksum())) {
+            return null;
+        }
+        return new Frame(Frame.readLsn(header), payload);
+    }
+    
+    private boolean readFullyAt(ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            int read = dataIO.read(buf, position);
+            if (read < 0) {
+                return false;
+            }
+            position += read;
+        }
+        return true;
+    }
+    
+    /** Position of the first record with an lsn of at least lsn, or -1 if there is none. */
+    public long positionAtOrAfter(long lsn) throws IOException {
+        long start = index.floor(lsn);
+        long pos = start;
+        Frame frame = readAt(pos);
+        if (frame == null && start > 0) {
+            // the entry is no good (a crash while the index was being written). go the long way.
+            pos = 0;
+            frame = readAt(pos);
+        }
+        while (frame != null && frame.lsn < lsn) {
+            pos += Frame.size(frame.payload.remaining());
+            frame = readAt(pos);
+        }
+        return frame == null ? -1 : pos;
     }
     
-    private void writeFully(ByteBuffer buf, int remaining) throws IOException {
-        int wrote = 0;
+    private ByteBuffer headerBuf(int i, ByteBuffer payload, long lsn) {
+        if (i >= headerBufs.size()) {
+            // direct, so that a record in a direct buffer is written without any copying.
+            headerBufs.add(ByteBuffer.allocateDirect(Frame.HEADER_SIZE));
+        }
+        ByteBuffer buf = headerBufs.get(i);
+        Frame.writeHeader(buf, payload, dataIO.generation(), lsn, crc);
+        return buf;
+    }
+    
+    private void writeFully(ByteBuffer[] bufs, int length, long remaining) throws IOException {
+        int first = 0;
+        long wrote = 0;
         while (wrote < remaining) {
-            wrote += dataIO.write(buf);
+            wrote += dataIO.write(bufs, first, length - first);
+            while (first < length && !bufs[first].hasRemaining()) {
+                first += 1;
+            }
         }
     }
     
@@ -141,18 +407,24 @@ public class Segment implements Comparable<Segment> {
     }
     
     public Iterable<ByteBuffer> readFromMark(long softMark) throws IOException {
+        return payloads(framesFromMark(softMark));
+    }
+    
+    /** Same as readFromMark(), but each record comes with its lsn. */
+    Iterable<Frame> framesFromMark(long softMark) throws IOException {
         dataIO.seek(softMark);
-        return new Iterable<ByteBuffer>() {
-            public Iterator<ByteBuffer> iterator() {
-                return new Iterator<ByteBuffer>() {
-                    private ByteBuffer next = preReadNextOrNull();
+        return new Iterable<Frame>() {
+            public Iterator<Frame> iterator() {
+                return new Iterator<Frame>() {
+                    private final Frame.Checksum crc = new Frame.Checksum();
+                    private Frame next = preReadNextOrNull();
                     
                     public boolean hasNext() {
                         return next != null;
                     }
 
-                    public ByteBuffer next() {
-                        ByteBuffer returnThis = next;
+                    public Frame next() {
+                        Frame returnThis = next;
                         next = preReadNextOrNull();
                         return returnThis;
                     }
@@ -161,11 +433,12 @@ public class Segment implements Comparable<Segment> {
                         throw new RuntimeException("Illegal call");
                     }
                     
-                    private ByteBuffer preReadNextOrNull() {
-                        int numBytes = readLength();
+                    private Frame preReadNextOrNull() {
+                        int numBytes = readHeader();
                         if (numBytes < 1) {
                             return null;
                         }
+                        long lsn = Frame.readLsn(HEADER_BUF);
                         ByteBuffer buf = ByteBuffer.allocate(numBytes);
                         try {
                             readFully(buf);
@@ -173,20 +446,22 @@ public class Segment implements Comparable<Segment> {
                             return null;
                         }
                         buf.flip();
-                        return buf;
+                        if (!Frame.isIntact(HEADER_BUF, buf, crc)) {
+                            return null;
+                        }
+                        return new Frame(lsn, buf);
                     }
                     
-                    private int readLength() {
-                        LENGTH_BUF.clear();
-                        assert LENGTH_BUF.remaining() == 4;
+                    // the length of the next record, or 0 when there isn't one of ours.
+                    private int readHeader() {
+                        HEADER_BUF.clear();
                         try {
-                            readFully(LENGTH_BUF);
+                            readFully(HEADER_BUF);
                         } catch (IOException ex) {
                             return 0;
                         }
-                        LENGTH_BUF.flip();
-                        int numBytes = LENGTH_BUF.getInt();
-                        return numBytes;
+                        HEADER_BUF.flip();
+                        return Frame.readLength(HEADER_BUF, dataIO.generation());
                     }
                     
                     private void readFully(ByteBuffer buf) throws IOException {
@@ -204,40 +479,180 @@ public class Segment implements Comparable<Segment> {
         };
     }
     
+    // walks the records in a read-only mapping of the data file. nothing is read through dataIO, so this does not
+    // move the file pointer.
+    public Iterable<ByteBuffer> mapFromMark(long softMark) throws IOException {
+        return payloads(mapFramesFromMark(softMark));
+    }
+    
+    /** Same as mapFromMark(), but each record comes with its lsn. */
+    Iterable<Frame> mapFramesFromMark(long softMark) throws IOException {
+        final ByteBuffer mapped = dataIO.map();
+        final long start = softMark;
+        return new Iterable<Frame>() {
+            public Iterator<Frame> iterator() {
+                return new Iterator<Frame>() {
+                    private final Frame.Checksum crc = new Frame.Checksum();
+                    private int pos = (int)Math.min(start, mapped.limit());
+                    private Frame next = sliceNextOrNull();
+                    
+                    public boolean hasNext() {
+                        return next != null;
+                    }
+
+                    public Frame next() {
+                        Frame returnThis = next;
+                        next = sliceNextOrNull();
+                        return returnThis;
+                    }
+
+                    public void remove() {
+                        throw new RuntimeException("Illegal call");
+                    }
+                    
+                    private Frame sliceNextOrNull() {
+                        if (!Frame.isValid(mapped, pos, mapped.limit(), generation(), crc)) {
+                            return null;
+                        }
+                        int numBytes = mapped.getInt(pos);
+                        long lsn = Frame.lsnAt(mapped, pos);
+                        ByteBuffer view = mapped.duplicate();
+                        view.position(pos + Frame.HEADER_SIZE);
+                        view.limit(pos + Frame.size(numBytes));
+                        pos += Frame.size(numBytes);
+                        return new Frame(lsn, view.slice());
+                    }
+                };
+            }
+        };
+    }
+    
+    private static Iterable<ByteBuffer> payloads(Iterable<Frame> frames) {
+        return Iterables.transform(frames, new Function<Frame, ByteBuffer>() {
+            public ByteBuffer apply(Frame frame) {
+                return frame.payload;
+            }
+        });
+    }
+    
     private void maybeSync(long now) throws IOException {
-        boolean sync = false;
+        if (shouldSync(now)) {
+            sync();
+        }
+    }
+    
+    public boolean shouldSync(long now) {
+        // nothing to do.
+        if (writesSinceSync.get() == 0) {
+            return false;
+        }
+        
+        // sync once the oldest write has waited as long as the policy allows.
+        if (adaptive != null) {
+            return nanosUntilSync(now) == 0;
+        }
         
         // sync if we wrote enough bytes.
-        if (syncAfterBytes > 0 && bytesSinceLastSync > syncAfterBytes) {
-            sync = true;
+        if (syncAfterBytes > 0 && bytesSinceLastSync.get() > syncAfterBytes) {
+            return true;
         } 
         
         // sync if it's been a while.
         else if (syncAfterTime > 0 && now - lastSync > syncAfterTime) {
-            sync = true;
+            return true;
         }
         
         // sync if we've written a lot of times.
-        else if (syncAfterWrites > 0 && writesSinceSync > syncAfterWrites) {
-            sync = true;
+        else if (syncAfterWrites > 0 && writesSinceSync.get() > syncAfterWrites) {
+            return true;
         } 
         
         // sync if we always should.
-        else if (alwaysSync) {
-            sync = true;
+        else {
+            return alwaysSync;
         }
-        
-        if (sync) {
-            dataIO.sync();
-            bytesSinceLastSync = 0;
-            lastSync = now;
-            writesSinceSync = 0;
+    }
+    
+    public boolean hasUnsyncedWrites() {
+        return writesSinceSync.get() > 0;
+    }
+    
+    /** How long until the time based trigger wants a sync, assuming something gets written. */
+    public long millisUntilSync(long now) {
+        if (syncAfterTime <= 0) {
+            return Long.MAX_VALUE;
+        }
+        return Math.max(0, lastSync + syncAfterTime - now);
+    }
+    
+    /** Like millisUntilSync(), with the finer resolution the adaptive policy needs. Now is in millis all the same. */
+    public long nanosUntilSync(long now) {
+        if (adaptive == null) {
+            long millis = millisUntilSync(now);
+            return millis == Long.MAX_VALUE ? Long.MAX_VALUE : TimeUnit.MILLISECONDS.toNanos(millis);
+        }
+        long oldest = oldestUnsynced.get();
+        if (oldest == 0) {
+            // nothing written yet, or a sync raced the write that set it. either way the clock starts now.
+            oldestUnsynced.compareAndSet(0, System.nanoTime());
+            return adaptive.getDelayNanos();
+        }
+        return Math.max(0, oldest + adaptive.getDelayNanos() - System.nanoTime());
+    }
+    
+    // safe to call from another thread while appends are happening. only what was counted before the sync started is
+    // considered synced. returns the lsn of the newest record that is: append() sets lastLsn before counting, so it
+    // is at least the lsn of everything counted here.
+    public long sync() throws IOException {
+        long bytes = bytesSinceLastSync.get();
+        long writes = writesSinceSync.get();
+        long covered = lastLsn;
+        long oldest = oldestUnsynced.get();
+        lastSync = System.currentTimeMillis();
+        long started = syncTimer == null && adaptive == null ? 0 : System.nanoTime();
+        dataIO.sync();
+        if (syncTimer != null) {
+            syncTimer.update(System.nanoTime() - started, TimeUnit.NANOSECONDS);
+        }
+        if (adaptive != null && writes > 0) {
+            long late = oldest == 0 ? 0 : started - oldest - adaptive.getDelayNanos();
+            adaptive.synced(started, late, System.nanoTime() - started, bytes);
         }
+        bytesSinceLastSync.addAndGet(-bytes);
+        // writes that came in while syncing are not covered. they are no older than the sync.
+        oldestUnsynced.set(writesSinceSync.addAndGet(-writes) == 0 ? 0 : started);
+        syncCount.incrementAndGet();
+        return covered;
     }
     
     private void loadMark() throws IOException {
+        synchronized (metaLock) {
+            readMeta();
+        }
+    }
+    
+    private void readMeta() throws IOException {
         meta.seek(0);
-        this.mark = meta.readLong();
+        try {
+            this.mark = meta.readLong();
+        } catch (EOFException ex) {
+            // no meta file (it is created empty when missing). nothing was marked, and every record gets scanned.
+            this.mark = 0;
+            this.sealedEnd = UNSEALED;
+            this.lastLsn = -1;
+            return;
+        }
+        try {
+            this.sealedEnd = meta.readLong();
+            this.lastLsn = meta.readLong();
+            if (sealedEnd != UNSEALED) {
+                index.readFrom(meta);
+            }
+        } catch (EOFException ex) {
+            // written before segments were sealed.
+            this.sealedEnd = UNSEALED;
+            this.lastLsn = -1;
+        }
     }
     
     
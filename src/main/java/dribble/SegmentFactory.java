@@ -5,4 +5,10 @@ import java.io.IOException;
 public interface SegmentFactory {
     public Segment next() throws IOException;
     public Iterable<Segment> getSegments() throws IOException;
+    
+    /** 
+     * Called with a segment the journal no longer needs (it has already been forgotten). The factory may reuse its
+     * storage for a later segment, otherwise it should delete it.
+     */
+    public void recycle(Segment segment) throws IOException;
 }
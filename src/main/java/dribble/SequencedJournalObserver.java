@@ -0,0 +1,11 @@
+package dribble;
+
+import java.nio.ByteBuffer;
+
+/**
+ * An observer that wants each record's lsn along with it. Recovery calls recover(lsn, buf) instead of recover(buf),
+ * which can simply delegate (or do nothing).
+ */
+public interface SequencedJournalObserver extends JournalObserver {
+    public void recover(long lsn, ByteBuffer buf);
+}
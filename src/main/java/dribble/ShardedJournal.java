@@ -0,0 +1,282 @@
+package dribble;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One logical log spread over several journals, each with its own writer thread, segments and (ideally) disk. Records
+ * go to a shard by key, or round robin without one. Every record is stamped with a global sequence number (the first 8
+ * bytes of what is stored in the shard), so the shards can be replayed as one log in append order.
+ *
+ * Marks and plain recovery are per shard. Within a shard, records are stored in sequence order.
+ */
+public class ShardedJournal {
+    private static final Logger log = LoggerFactory.getLogger(ShardedJournal.class);
+    private static final int SEQUENCE_SIZE = 8;
+
+    // how many records each shard may read ahead of a merged recovery.
+    private static final int MERGE_READ_AHEAD = 1024;
+    private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+    private final List<Journal> shards;
+    private final AtomicLong nextSequence = new AtomicLong(0);
+    private final AtomicInteger roundRobin = new AtomicInteger(0);
+
+    // taking the sequence and queueing the record happen together, so a shard never holds them out of order.
+    private final Object[] shardLocks;
+
+    /** The journals must not be used directly once they belong to a sharded journal. */
+    public ShardedJournal(List<Journal> shards) throws IOException {
+        if (shards.isEmpty()) {
+            throw new IllegalArgumentException("Need at least one shard");
+        }
+        this.shards = new ArrayList<Journal>(shards);
+        this.shardLocks = new Object[shards.size()];
+        for (int i = 0; i < shardLocks.length; i++) {
+            shardLocks[i] = new Object();
+        }
+
+        // carry on after the newest record that is still around, so that recovered and new records stay in order. the
+        // newest record of each shard is read directly: it is there even when the shard was marked at it.
+        long newest = -1;
+        for (Journal shard : this.shards) {
+            long lsn = shard.getWrittenWatermark();
+            ByteBuffer buf = lsn < 0 ? null : shard.read(lsn);
+            if (buf != null) {
+                newest = Math.max(newest, buf.getLong(buf.position()));
+            }
+        }
+        nextSequence.set(newest + 1);
+    }
+
+    public int getShardCount() {
+        return shards.size();
+    }
+
+    /** Sequence number the next append will get. */
+    public long getNextSequence() {
+        return nextSequence.get();
+    }
+
+    /** Appends to the next shard in turn. */
+    public ShardReceipt append(ByteBuffer buf) throws IOException {
+        return appendTo((roundRobin.getAndIncrement() & Integer.MAX_VALUE) % shards.size(), buf);
+    }
+
+    /** Appends to the shard that owns the key. Records with equal keys always go to the same shard. */
+    public ShardReceipt append(Object key, ByteBuffer buf) throws IOException {
+        return appendTo((key.hashCode() & Integer.MAX_VALUE) % shards.size(), buf);
+    }
+
+    private ShardReceipt appendTo(int shard, ByteBuffer buf) throws IOException {
+        Journal journal = shards.get(shard);
+        ByteBuffer stamped = journal.borrow(SEQUENCE_SIZE + buf.remaining());
+        boolean handedOver = false;
+        try {
+            synchronized (shardLocks[shard]) {
+                long seq = nextSequence.getAndIncrement();
+                stamped.putLong(seq);
+                stamped.put(buf.duplicate());
+                stamped.flip();
+                // the journal owns the buffer from here on, whether or not the append works out.
+                handedOver = true;
+                return new ShardReceipt(shard, seq, journal.appendBorrowed(stamped));
+            }
+        } finally {
+            if (!handedOver) {
+                journal.release(stamped);
+            }
+        }
+    }
+
+    /** Marks the receipt's shard. The other shards are not touched. */
+    public void mark(ShardReceipt receipt) throws IOException {
+        shards.get(receipt.shard).mark(receipt.receipt);
+    }
+
+    public void mark(ShardReceipt receipt, Durability durability) throws IOException {
+        shards.get(receipt.shard).mark(receipt.receipt, durability);
+    }
+
+    /** Replays one shard. The observer only sees what was appended, without the sequence number. */
+    public void recover(int shard, final JournalObserver observer) throws IOException {
+        shards.get(shard).recover(new JournalObserver() {
+            public void recover(ByteBuffer buf) {
+                observer.recover(payload(buf));
+            }
+        });
+    }
+
+    /**
+     * Replays every shard as one log, in sequence order. Each shard is read on the executor (so it needs a thread per
+     * shard) a bounded number of records ahead, and the observer is called on the calling thread.
+     */
+    public void recover(final JournalObserver observer, Executor executor) throws IOException {
+        final int n = shards.size();
+        List<BlockingQueue<ByteBuffer>> queues = new ArrayList<BlockingQueue<ByteBuffer>>(n);
+        List<FutureTask<Void>> readers = new ArrayList<FutureTask<Void>>(n);
+        for (int i = 0; i < n; i++) {
+            final Journal shard = shards.get(i);
+            final BlockingQueue<ByteBuffer> queue = new ArrayBlockingQueue<ByteBuffer>(MERGE_READ_AHEAD);
+            queues.add(queue);
+            readers.add(new FutureTask<Void>(new Runnable() {
+                public void run() {
+                    try {
+                        shard.recover(new JournalObserver() {
+                            public void recover(ByteBuffer buf) {
+                                put(queue, buf);
+                            }
+                        });
+                    } catch (IOException ex) {
+                        throw new RuntimeException(ex);
+                    } finally {
+                        put(queue, END);
+                    }
+                }
+            }, null));
+        }
+
+        try {
+            for (FutureTask<Void> reader : readers) {
+                executor.execute(reader);
+            }
+
+            // the head of every shard that still has records, smallest sequence first.
+            PriorityQueue<Head> heads = new PriorityQueue<Head>(n);
+            for (int i = 0; i < n; i++) {
+                Head head = Head.next(queues.get(i), readers.get(i));
+                if (head != null) {
+                    heads.add(head);
+                }
+            }
+            while (!heads.isEmpty()) {
+                Head head = heads.poll();
+                observer.recover(payload(head.buf));
+                Head next = Head.next(head.queue, head.reader);
+                if (next != null) {
+                    heads.add(next);
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted during recovery");
+        } finally {
+            for (FutureTask<Void> reader : readers) {
+                reader.cancel(true);
+            }
+        }
+    }
+
+    public void drain() throws Exception {
+        Exception willThrow = null;
+        for (Journal shard : shards) {
+            try {
+                shard.drain();
+            } catch (Exception ex) {
+                log.warn(ex.getMessage(), ex);
+                willThrow = ex;
+            }
+        }
+        if (willThrow != null)
+            throw willThrow;
+    }
+
+    public void close() throws IOException {
+        IOException willThrow = null;
+        for (Journal shard : shards) {
+            try {
+                shard.close();
+            } catch (IOException ex) {
+                log.warn(ex.getMessage(), ex);
+                willThrow = ex;
+            }
+        }
+        if (willThrow != null)
+            throw willThrow;
+    }
+
+    private static ByteBuffer payload(ByteBuffer stamped) {
+        ByteBuffer payload = stamped.duplicate();
+        payload.position(payload.position() + SEQUENCE_SIZE);
+        return payload.slice();
+    }
+
+    // a shard reader that gets cancelled stops at its next record.
+    private static void put(BlockingQueue<ByteBuffer> queue, ByteBuffer buf) {
+        try {
+            queue.put(buf);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(ex);
+        }
+    }
+
+    private static class Head implements Comparable<Head> {
+        private final ByteBuffer buf;
+        private final long seq;
+        private final BlockingQueue<ByteBuffer> queue;
+        private final FutureTask<Void> reader;
+
+        private Head(ByteBuffer buf, BlockingQueue<ByteBuffer> queue, FutureTask<Void> reader) {
+            this.buf = buf;
+            this.seq = buf.getLong(buf.position());
+            this.queue = queue;
+            this.reader = reader;
+        }
+
+        // null once the shard has nothing left.
+        static Head next(BlockingQueue<ByteBuffer> queue, FutureTask<Void> reader) throws IOException, InterruptedException {
+            ByteBuffer buf = queue.take();
+            if (buf != END) {
+                return new Head(buf, queue, reader);
+            }
+            try {
+                reader.get();
+            } catch (ExecutionException ex) {
+                Throwable realProblem = ex.getCause();
+                if (realProblem instanceof RuntimeException && realProblem.getCause() instanceof IOException) {
+                    throw (IOException)realProblem.getCause();
+                } else {
+                    throw new IOException(realProblem);
+                }
+            }
+            return null;
+        }
+
+        public int compareTo(Head o) {
+            return seq < o.seq ? -1 : (seq == o.seq ? 0 : 1);
+        }
+    }
+
+    public static class ShardReceipt {
+        private final int shard;
+        private final long seq;
+        private final Journal.Receipt receipt;
+
+        private ShardReceipt(int shard, long seq, Journal.Receipt receipt) {
+            this.shard = shard;
+            this.seq = seq;
+            this.receipt = receipt;
+        }
+
+        public int getShard() { return shard; }
+        public long getSequence() { return seq; }
+
+        /** The receipt from the shard's journal. Await it, or listen on it, like any other. */
+        public Journal.Receipt getReceipt() { return receipt; }
+    }
+}
@@ -0,0 +1,35 @@
+package dribble;
+
+import java.util.concurrent.locks.LockSupport;
+
+/** 
+ * Makes a sync of in-memory data take as long as it would on a disk with this latency and bandwidth. Zero for both
+ * makes syncing free.
+ */
+class SimulatedDisk {
+    static final SimulatedDisk NONE = new SimulatedDisk(0, 0);
+
+    private final long latencyNanos;
+    private final long bytesPerSecond;
+
+    SimulatedDisk(long latencyNanos, long bytesPerSecond) {
+        this.latencyNanos = latencyNanos;
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    /** Blocks for as long as syncing this many dirty bytes would take. */
+    public void sync(long bytes) {
+        long nanos = latencyNanos;
+        if (bytesPerSecond > 0) {
+            nanos += (long)(bytes * 1e9 / bytesPerSecond);
+        }
+        if (nanos <= 0) {
+            return;
+        }
+        long deadline = System.nanoTime() + nanos;
+        long left;
+        while ((left = deadline - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(left);
+        }
+    }
+}
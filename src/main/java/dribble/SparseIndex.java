@@ -0,0 +1,75 @@
+package dribble;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Where some of the records of a segment start, by lsn: the first one, and then one every so many bytes. Finding a
+ * record is a binary search for the closest entry before it, and a short scan from there. The writer adds entries
+ * while readers look things up, so every method is synchronized. Adding is rare enough for that not to matter.
+ */
+class SparseIndex {
+    private long[] lsns = new long[16];
+    private long[] positions = new long[16];
+    private int size = 0;
+
+    /** Entries that do not come after the newest one are ignored. */
+    public synchronized void add(long lsn, long position) {
+        if (size > 0 && (lsn <= lsns[size - 1] || position <= positions[size - 1])) {
+            return;
+        }
+        if (size == lsns.length) {
+            lsns = Arrays.copyOf(lsns, size * 2);
+            positions = Arrays.copyOf(positions, size * 2);
+        }
+        lsns[size] = lsn;
+        positions[size] = position;
+        size += 1;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    /** Lsn of the first record, or -1 if nothing is indexed. */
+    public synchronized long firstLsn() {
+        return size == 0 ? -1 : lsns[0];
+    }
+
+    /** Position of the newest entry, or -1 if nothing is indexed. */
+    public synchronized long lastPosition() {
+        return size == 0 ? -1 : positions[size - 1];
+    }
+
+    /** Position of the closest indexed record at or before lsn. 0 (the start of the segment) if there is none. */
+    public synchronized long floor(long lsn) {
+        int i = Arrays.binarySearch(lsns, 0, size, lsn);
+        if (i < 0) {
+            i = -i - 2;
+        }
+        return i < 0 ? 0 : positions[i];
+    }
+
+    // [long count][long lsn, long position]...
+    public synchronized void writeTo(MetaIO meta) throws IOException {
+        meta.writeLong(size);
+        for (int i = 0; i < size; i++) {
+            meta.writeLong(lsns[i]);
+            meta.writeLong(positions[i]);
+        }
+    }
+
+    /** Adds what writeTo() wrote. A short index is as good as a missing one: lookups just scan further. */
+    public synchronized void readFrom(MetaIO meta) throws IOException {
+        try {
+            long count = meta.readLong();
+            for (long i = 0; i < count; i++) {
+                long lsn = meta.readLong();
+                add(lsn, meta.readLong());
+            }
+        } catch (EOFException ex) {
+            // cut short by a crash. what we have is still right.
+        }
+    }
+}
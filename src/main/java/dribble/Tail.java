@@ -0,0 +1,117 @@
+package dribble;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.util.List;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Reads a journal from some lsn on, first what is already on disk and then new records as they get synced. Waiting
+ * for the next record blocks on the synced watermark, so a tail sleeps until a sync moves it instead of polling.
+ * Records are read with positional reads, and a tail only takes the journal's locks when it moves to another segment,
+ * so any number of tails can follow a journal without getting in the writer's way.
+ *
+ * A tail is not thread safe. Give every reader its own. Records that get marked off before a tail reaches them are
+ * skipped: the tail carries on with the oldest record still around.
+ */
+public class Tail {
+    private final Journal journal;
+    private long nextLsn;
+
+    // where nextLsn is. null until it has been looked up, and again whenever the segment has to be looked up anew.
+    private Segment seg = null;
+    private long pos = 0;
+
+    Tail(Journal journal, long fromLsn) {
+        this.journal = journal;
+        this.nextLsn = Math.max(0, fromLsn);
+    }
+
+    /** Lsn of the record the next call to next() or poll() hands out. */
+    public long getNextLsn() {
+        return nextLsn;
+    }
+
+    /** The next record, or null if it is not synced yet. */
+    public ByteBuffer poll() throws IOException {
+        if (!journal.synced().reached(nextLsn)) {
+            return null;
+        }
+        return read();
+    }
+
+    /** The next record, waiting up to millis for it to be synced. Null if it was not. */
+    public ByteBuffer next(long millis) throws IOException, InterruptedException {
+        try {
+            journal.synced().await(nextLsn, millis);
+        } catch (TimeoutException ex) {
+            return null;
+        }
+        return read();
+    }
+
+    // the record is synced, so it is in one of the live segments.
+    private ByteBuffer read() throws IOException {
+        for (int attempt = 0; attempt < 3; attempt++) {
+            try {
+                if (seg == null && !locate()) {
+                    return null;
+                }
+                Frame frame = seg.readAt(pos);
+                if (frame == null) {
+                    // the end of a segment. the record is at the start of the next one.
+                    if (!nextSegment()) {
+                        return null;
+                    }
+                    frame = seg.readAt(pos);
+                }
+                if (frame != null && frame.lsn >= nextLsn) {
+                    pos += Frame.size(frame.payload.remaining());
+                    nextLsn = frame.lsn + 1;
+                    return frame.payload;
+                }
+            } catch (ClosedChannelException ex) {
+                // the segment was reclaimed under us.
+            }
+            seg = null;
+        }
+        throw new IOException("Could not find record " + nextLsn);
+    }
+
+    private boolean locate() throws IOException {
+        List<Segment> segments = journal.liveSegments();
+        if (segments.isEmpty()) {
+            return false;
+        }
+        Segment holding = Journal.segmentHolding(nextLsn, segments);
+        if (holding == null) {
+            // marked off already. start at the oldest record there is.
+            seg = segments.get(0);
+            pos = 0;
+            return true;
+        }
+        long found = holding.positionAtOrAfter(nextLsn);
+        if (found < 0) {
+            return false;
+        }
+        seg = holding;
+        pos = found;
+        return true;
+    }
+
+    private boolean nextSegment() throws IOException {
+        List<Segment> segments = journal.liveSegments();
+        int i = segments.indexOf(seg);
+        if (i < 0) {
+            seg = null;
+            return locate();
+        }
+        if (i + 1 >= segments.size()) {
+            return false;
+        }
+        seg = segments.get(i + 1);
+        pos = 0;
+        return true;
+    }
+}
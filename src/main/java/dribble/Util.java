@@ -1,10 +1,20 @@
 package dribble;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import java.io.EOFException;
+import java.io.File;
 import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 
 public class Util {
+    private static final Logger log = LoggerFactory.getLogger(Util.class);
     
     public static int readInt(ByteBuffer buf) throws IOException {
         if (buf.remaining() < 4) {
@@ -18,4 +28,75 @@ public class Util {
             throw new EOFException();
         return ((ch1 << 24) + (ch2 << 16) + (ch3 << 8) + (ch4 << 0));
     }
+    
+    /** 
+     * Writes zeros up to size so the filesystem allocates every block now instead of on each append. Does not move
+     * the channel position. 
+     */
+    public static void preallocate(FileChannel fc, long size) throws IOException {
+        ByteBuffer zeros = ByteBuffer.allocateDirect(0x00010000);
+        long pos = fc.size();
+        while (pos < size) {
+            zeros.clear();
+            zeros.limit((int)Math.min(zeros.capacity(), size - pos));
+            pos += fc.write(zeros, pos);
+        }
+        fc.force(true);
+    }
+    
+    /** 
+     * Syncs a directory, so that a rename or a new file in it survives a crash. Platforms that cannot open a directory
+     * (windows) are skipped; they do not need this.
+     */
+    public static void syncDirectory(File dir) throws IOException {
+        FileChannel fc;
+        try {
+            fc = FileChannel.open(dir.toPath(), StandardOpenOption.READ);
+        } catch (IOException ex) {
+            log.debug("Cannot open {} to sync it", dir.getAbsolutePath());
+            return;
+        }
+        try {
+            fc.force(true);
+        } finally {
+            fc.close();
+        }
+    }
+    
+    /** A heap copy of the remaining bytes, for keeping records that were handed out as views of shared memory. */
+    public static ByteBuffer copy(ByteBuffer buf) {
+        ByteBuffer copy = ByteBuffer.allocate(buf.remaining());
+        copy.put(buf.duplicate());
+        copy.flip();
+        return copy;
+    }
+    
+    /** 
+     * Releases a mapping right away instead of whenever it gets collected. The buffer (and anything sliced from it) 
+     * must never be touched again.
+     */
+    public static void unmap(MappedByteBuffer buf) {
+        if (buf == null) {
+            return;
+        }
+        try {
+            try {
+                // java 9 and later.
+                Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+                Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+                Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+                theUnsafe.setAccessible(true);
+                invokeCleaner.invoke(theUnsafe.get(null), buf);
+            } catch (NoSuchMethodException ex) {
+                // java 8 and earlier.
+                Method cleanerMethod = buf.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+                Object cleaner = cleanerMethod.invoke(buf);
+                cleaner.getClass().getMethod("clean").invoke(cleaner);
+            }
+        } catch (Exception ex) {
+            // the mapping goes away when the buffer is collected.
+            log.debug("Could not unmap buffer", ex);
+        }
+    }
 }
@@ -0,0 +1,29 @@
+package dribble;
+
+import java.util.concurrent.locks.LockSupport;
+
+/** What a thread does while the ring buffer is full (producers) or empty (the writer). */
+public enum WaitStrategy {
+    /** Spin on the CPU. Lowest latency, but the writer keeps a core busy even when nothing is being appended. */
+    BUSY_SPIN {
+        void idle() { }
+    },
+    
+    /** Spin, but give the CPU to other threads on every pass. */
+    YIELD {
+        void idle() {
+            Thread.yield();
+        }
+    },
+    
+    /** Park. An idle writer costs nothing, and producers wake it up when they publish. */
+    PARK {
+        void idle() {
+            LockSupport.parkNanos(PARK_NANOS);
+        }
+    };
+    
+    static final long PARK_NANOS = 50000; // 50us
+    
+    abstract void idle();
+}
@@ -0,0 +1,104 @@
+package dribble;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeoutException;
+
+/** 
+ * A position that only ever moves forward. Checking it is a volatile read. Blocking waiters and futures are only
+ * created for callers that actually need to wait.
+ */
+class Watermark {
+    private volatile long position;
+    
+    // guarded by this.
+    private final PriorityQueue<Waiter> waiters = new PriorityQueue<Waiter>();
+    
+    Watermark(long initial) {
+        this.position = initial;
+    }
+    
+    public long get() {
+        return position;
+    }
+    
+    public boolean reached(long pos) {
+        return position >= pos;
+    }
+    
+    public void advance(long to) {
+        List<Waiter> ready = null;
+        synchronized (this) {
+            if (to <= position) {
+                return;
+            }
+            position = to;
+            while (waiters.size() > 0 && waiters.peek().pos <= to) {
+                if (ready == null) {
+                    ready = new ArrayList<Waiter>();
+                }
+                ready.add(waiters.poll());
+            }
+            notifyAll();
+        }
+        
+        // listeners might run inline. don't let them do it while holding the lock.
+        if (ready != null) {
+            for (Waiter waiter : ready) {
+                waiter.future.set(to);
+            }
+        }
+    }
+    
+    public void await(long pos, long millis) throws TimeoutException, InterruptedException {
+        if (reached(pos)) {
+            return;
+        }
+        long deadline = System.currentTimeMillis() + millis;
+        if (deadline < 0) {
+            deadline = Long.MAX_VALUE; // overflowed.
+        }
+        synchronized (this) {
+            while (!reached(pos)) {
+                long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0) {
+                    throw new TimeoutException("Watermark did not reach " + pos);
+                }
+                wait(wait);
+            }
+        }
+    }
+    
+    /** Completes with the position that satisfied the request. */
+    public ListenableFuture<Long> when(long pos) {
+        if (reached(pos)) {
+            return Futures.immediateFuture(position);
+        }
+        synchronized (this) {
+            if (reached(pos)) {
+                return Futures.immediateFuture(position);
+            }
+            Waiter waiter = new Waiter(pos);
+            waiters.add(waiter);
+            return waiter.future;
+        }
+    }
+    
+    private static class Waiter implements Comparable<Waiter> {
+        private final long pos;
+        private final SettableFuture<Long> future = SettableFuture.create();
+        
+        private Waiter(long pos) {
+            this.pos = pos;
+        }
+
+        public int compareTo(Waiter o) {
+            return pos < o.pos ? -1 : (pos == o.pos ? 0 : 1);
+        }
+    }
+}
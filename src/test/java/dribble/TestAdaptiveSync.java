@@ -0,0 +1,114 @@
+package dribble;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+public class TestAdaptiveSync {
+    private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+    
+    // the policy aims right at the target, and timing from outside the segment adds a little it does not see.
+    private static final long OUTSIDE = TimeUnit.MICROSECONDS.toNanos(50);
+    
+    @Test
+    public void testDelayLeavesRoomForTheSync() {
+        AdaptiveSync adaptive = new AdaptiveSync(5 * MS);
+        // nothing measured yet, so sync right away.
+        Assert.assertEquals(0, adaptive.getDelayNanos());
+        
+        // syncs that take 1ms whatever their size leave 4ms to wait.
+        long started = 0;
+        for (int i = 0; i < 10; i++) {
+            adaptive.synced(started, 0, MS, 1000 * (i + 1));
+            started += 10 * MS;
+        }
+        Assert.assertEquals(4 * MS, adaptive.getDelayNanos());
+        
+        // a sync that started late left the oldest write waiting that much longer.
+        adaptive.synced(started, MS, MS, 1000);
+        Assert.assertEquals(3 * MS, adaptive.getDelayNanos());
+        started += 10 * MS;
+        
+        // one slow sync is the worst there is now.
+        adaptive.synced(started, 0, 4 * MS, 1000);
+        Assert.assertEquals(MS, adaptive.getDelayNanos());
+    }
+    
+    @Test
+    public void testBandwidthShortensTheDelay() {
+        AdaptiveSync adaptive = new AdaptiveSync(5 * MS);
+        // 1ms plus 1ms per mb, with 1mb arriving every 10ms.
+        long started = 0;
+        for (int i = 0; i < 64; i++) {
+            int mb = i % 2 + 1;
+            started += 10 * MS * mb;
+            adaptive.synced(started, 0, MS + mb * MS, mb * 0x00100000);
+        }
+        // the 4ms left gets split between waiting and syncing what arrived while waiting: w + w / 10 = 4ms.
+        Assert.assertEquals(4 * MS / 1.1, adaptive.getDelayNanos(), 1000);
+    }
+    
+    @Test
+    public void testSlowDiskSyncsRightAway() {
+        AdaptiveSync adaptive = new AdaptiveSync(5 * MS);
+        adaptive.synced(0, 0, 8 * MS, 1000);
+        Assert.assertEquals(0, adaptive.getDelayNanos());
+    }
+    
+    @Test
+    public void testSegmentBatchesWithinTarget() throws IOException {
+        AdaptiveSync adaptive = new AdaptiveSync(5 * MS);
+        SimulatedDisk disk = new SimulatedDisk(MS, 0);
+        
+        // the first run warms up the jit and gives the policy something to go by. after that, a stall of the whole
+        // machine is more than any policy can plan for, so one of a few runs has to make it.
+        p99ToSynced(adaptive, disk, 1000);
+        long p99 = Long.MAX_VALUE;
+        for (int run = 0; run < 10 && p99 > 5 * MS + OUTSIDE; run++) {
+            p99 = Math.min(p99, p99ToSynced(adaptive, disk, 2000));
+        }
+        Assert.assertTrue(p99 <= 5 * MS + OUTSIDE);
+    }
+    
+    // a write every 100us, timed from the call to append to the end of the sync that covers it. syncing every one
+    // would take ten times as long as there is.
+    private static long p99ToSynced(AdaptiveSync adaptive, SimulatedDisk disk, int writes) throws IOException {
+        Segment segment = Segment.forWrite(new MemoryDataIO(0, 0x00100000, false, disk), new MemoryMetaIO(disk));
+        segment.syncAdaptively(adaptive);
+        long[] appendedAt = new long[writes];
+        long[] toSynced = new long[writes];
+        int synced = 0;
+        long syncs = 0;
+        long due = System.nanoTime();
+        for (int i = 0; i < writes; i++) {
+            due += TimeUnit.MICROSECONDS.toNanos(100);
+            LockSupport.parkNanos(due - System.nanoTime());
+            appendedAt[i] = System.nanoTime();
+            segment.append(ByteBuffer.wrap(new byte[100]));
+            
+            // the segment syncs inline, so a sync that happened in there covered every write so far.
+            if (segment.getSyncCount() != syncs) {
+                syncs = segment.getSyncCount();
+                long now = System.nanoTime();
+                for (; synced <= i; synced++) {
+                    toSynced[synced] = now - appendedAt[synced];
+                }
+            }
+        }
+        Assert.assertTrue(adaptive.getDelayNanos() > 0);
+        Assert.assertTrue(adaptive.getDelayNanos() < 5 * MS);
+        Assert.assertTrue(segment.getSyncCount() > 1);
+        Assert.assertTrue(segment.getSyncCount() < writes / 4);
+        segment.close();
+        
+        // the writes after the last sync were still waiting for one when the run ended.
+        long[] sorted = Arrays.copyOf(toSynced, synced);
+        Arrays.sort(sorted);
+        return sorted[(int)Math.ceil(synced * 0.99) - 1];
+    }
+}
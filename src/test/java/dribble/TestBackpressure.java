@@ -0,0 +1,69 @@
+package dribble;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class TestBackpressure {
+    
+    @Test
+    public void testFailFastAboveHighWater() throws Exception {
+        Backpressure bp = new Backpressure(1000, 100, Integer.MAX_VALUE, Integer.MAX_VALUE, BackpressurePolicy.FAIL);
+        for (int i = 0; i < 10; i++) {
+            bp.acquire(100, 1);
+        }
+        Assert.assertEquals(1000, bp.getPendingBytes());
+        
+        try {
+            bp.acquire(100, 1);
+            Assert.fail("Should have been over high water");
+        } catch (JournalFullException expected) { }
+        
+        // still throttled above the low water mark.
+        bp.release(800, 8);
+        Assert.assertTrue(bp.isThrottled());
+        try {
+            bp.acquire(1, 1);
+            Assert.fail("Should still be throttled");
+        } catch (JournalFullException expected) { }
+        
+        bp.release(100, 1);
+        Assert.assertFalse(bp.isThrottled());
+        bp.acquire(100, 1);
+        Assert.assertEquals(200, bp.getPendingBytes());
+    }
+    
+    @Test
+    public void testOversizedRecordIsAdmittedWhenEmpty() throws Exception {
+        Backpressure bp = new Backpressure(10, 5, 1, 0, BackpressurePolicy.FAIL);
+        bp.acquire(1000, 1);
+        Assert.assertEquals(1, bp.getPendingRecords());
+    }
+    
+    @Test
+    public void testBlockUntilLowWater() throws Exception {
+        final Backpressure bp = new Backpressure(Long.MAX_VALUE, Long.MAX_VALUE, 2, 1, BackpressurePolicy.BLOCK);
+        bp.acquire(10, 1);
+        bp.acquire(10, 1);
+        
+        final CountDownLatch admitted = new CountDownLatch(1);
+        Thread producer = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    bp.acquire(10, 1);
+                    admitted.countDown();
+                } catch (Exception ex) {
+                    ex.printStackTrace();
+                }
+            }
+        });
+        producer.start();
+        
+        Assert.assertFalse(admitted.await(200, TimeUnit.MILLISECONDS));
+        bp.release(10, 1);
+        Assert.assertTrue(admitted.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals(2, bp.getPendingRecords());
+    }
+}
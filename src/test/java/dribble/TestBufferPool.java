@@ -0,0 +1,67 @@
+package dribble;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+public class TestBufferPool {
+    private static final Random random = new Random(System.nanoTime());
+
+    @Test
+    public void testBuffersAreReused() {
+        BufferPool pool = new BufferPool(0x00010000, 2);
+        ByteBuffer a = pool.acquire(100);
+        Assert.assertTrue(a.isDirect());
+        Assert.assertEquals(100, a.remaining());
+        Assert.assertEquals(4096, a.capacity());
+        pool.release(a);
+
+        ByteBuffer b = pool.acquire(4000);
+        Assert.assertSame(a, b);
+        Assert.assertEquals(4000, b.remaining());
+        Assert.assertEquals(1, pool.getAllocations());
+
+        // too big to pool.
+        ByteBuffer big = pool.acquire(0x00020000);
+        Assert.assertEquals(0x00020000, big.capacity());
+        pool.release(big);
+        Assert.assertNotSame(big, pool.acquire(0x00020000));
+        Assert.assertEquals(3, pool.getAllocations());
+    }
+
+    @Test
+    public void testStagedWritesMatchUnstaged() throws IOException {
+        File dir = TestUtil.getRandomTempDir();
+        File data = new File(dir, "segment.log");
+        File meta = new File(dir, "segment.meta");
+
+        // small enough that the batch gets staged in several pieces.
+        BufferPool pool = new BufferPool(4096, 1);
+        Segment segment = Segment.forWrite(new FileDataIO(data, 0, 0, pool), new FileMetaIO(meta));
+        ByteBuffer[] bufs = new ByteBuffer[100];
+        for (int i = 0; i < bufs.length; i++) {
+            byte[] buf = new byte[i * 10 + 1];
+            random.nextBytes(buf);
+            bufs[i] = ByteBuffer.wrap(buf);
+        }
+        segment.append(bufs, 0, bufs.length);
+        segment.close();
+        Assert.assertEquals(1, pool.getAllocations());
+
+        Segment readSegment = Segment.forRead(new FileDataIO(data, 0), new FileMetaIO(meta));
+        int counter = 0;
+        for (ByteBuffer buf : readSegment.readFromMark()) {
+            bufs[counter].rewind();
+            Assert.assertEquals(bufs[counter], buf);
+            counter += 1;
+        }
+        Assert.assertEquals(bufs.length, counter);
+        readSegment.close();
+
+        TestUtil.removeDir(dir);
+    }
+}
@@ -1,5 +1,6 @@
 package dribble;
 
+import com.codahale.metrics.MetricRegistry;
 import junit.framework.Assert;
 import org.junit.After;
 import org.junit.Before;
@@ -13,9 +14,16 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 
 @RunWith(Parameterized.class)
 public class TestJournal {
@@ -123,6 +131,754 @@ public class TestJournal {
         
     }
         
+    @Test
+    public void testConcurrentAppendsAreAllWritten() throws Exception {
+        final int threads = 4;
+        final int writesPerThread = (params.journalSizeInMb * 0x00100000) / params.bufSize / threads;
+        final ArrayList<Exception> errors = new ArrayList<Exception>();
+        
+        Thread[] writers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            writers[i] = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        Journal.Receipt last = null;
+                        for (int j = 0; j < writesPerThread; j++) {
+                            last = journal.append(bytes(params.bufSize));
+                        }
+                        last.await(30000);
+                    } catch (Exception ex) {
+                        errors.add(ex);
+                    }
+                }
+            });
+            writers[i].start();
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        Assert.assertTrue(errors.isEmpty());
+        journal.drain();
+        journal.close();
+        
+        journal = buildJournal(dir);
+        final AtomicInteger recoveries = new AtomicInteger(0);
+        journal.recover(new JournalObserver() {
+            public void recover(ByteBuffer buf) {
+                Assert.assertEquals(params.bufSize, buf.remaining());
+                recoveries.incrementAndGet();
+            }
+        });
+        
+        // without a mark, the very first entry is treated as the mark and skipped.
+        Assert.assertEquals(threads * writesPerThread - 1, recoveries.get());
+    }
+        
+    @Test
+    public void testRingBufferAppendsAreAllWritten() throws Exception {
+        final int threads = 8;
+        final int writesPerThread = 1000;
+        for (WaitStrategy strategy : WaitStrategy.values()) {
+            journal.close();
+            TestUtil.removeDir(dir);
+            dir = TestUtil.getRandomTempDir();
+            SegmentFactory segmentFactory = FileSegmentFactory.FileSegmentFactoryBuilder
+                    .newBuilder()
+                    .withDirectory(dir)
+                    .build();
+            journal = Journal.JournalBuilder
+                    .newBuilder()
+                    .withSegmentFactory(segmentFactory)
+                    .withSegmentSize(SEGMENT_SIZE)
+                    .withRingBuffer(64, strategy)
+                    .build();
+            
+            final ArrayList<Exception> errors = new ArrayList<Exception>();
+            Thread[] writers = new Thread[threads];
+            for (int i = 0; i < threads; i++) {
+                writers[i] = new Thread(new Runnable() {
+                    public void run() {
+                        try {
+                            Journal.Receipt last = null;
+                            for (int j = 0; j < writesPerThread; j++) {
+                                last = journal.append(bytes(params.bufSize));
+                            }
+                            last.await(30000);
+                        } catch (Exception ex) {
+                            errors.add(ex);
+                        }
+                    }
+                });
+                writers[i].start();
+            }
+            for (Thread writer : writers) {
+                writer.join();
+            }
+            Assert.assertTrue(errors.isEmpty());
+            journal.drain();
+            Assert.assertEquals(0, journal.getBacklogSize());
+            journal.close();
+            
+            journal = buildJournal(dir);
+            final AtomicInteger recoveries = new AtomicInteger(0);
+            journal.recover(new JournalObserver() {
+                public void recover(ByteBuffer buf) {
+                    recoveries.incrementAndGet();
+                }
+            });
+            Assert.assertEquals(threads * writesPerThread - 1, recoveries.get());
+        }
+    }
+    
+    @Test
+    public void testMappedRecoveryMatchesCopy() throws Exception {
+        final int writes = 1000;
+        for (int i = 0; i < writes; i++) {
+            ByteBuffer buf = ByteBuffer.wrap(SLAB, i, params.bufSize);
+            journal.append(buf);
+        }
+        journal.drain();
+        journal.close();
+        
+        journal = buildJournal(dir);
+        final ArrayList<ByteBuffer> copied = new ArrayList<ByteBuffer>();
+        journal.recover(new JournalObserver() {
+            public void recover(ByteBuffer buf) {
+                copied.add(buf);
+            }
+        }, ReadMode.COPY);
+        final ArrayList<ByteBuffer> mapped = new ArrayList<ByteBuffer>();
+        journal.recover(new JournalObserver() {
+            public void recover(ByteBuffer buf) {
+                Assert.assertTrue(buf.isReadOnly());
+                mapped.add(Util.copy(buf));
+            }
+        }, ReadMode.MAPPED);
+        
+        Assert.assertEquals(writes - 1, copied.size());
+        Assert.assertEquals(copied, mapped);
+    }
+    
+    @Test
+    public void testParallelRecovery() throws Exception {
+        final int writes = (4 * SEGMENT_SIZE) / params.bufSize;
+        for (int i = 0; i < writes; i++) {
+            journal.append(ByteBuffer.wrap(SLAB, i, params.bufSize));
+        }
+        journal.drain();
+        journal.close();
+        
+        journal = buildJournal(dir);
+        final ArrayList<ByteBuffer> sequential = new ArrayList<ByteBuffer>();
+        journal.recover(new JournalObserver() {
+            public void recover(ByteBuffer buf) {
+                sequential.add(buf);
+            }
+        });
+        
+        ExecutorService pool = Executors.newFixedThreadPool(3);
+        try {
+            final ArrayList<ByteBuffer> ordered = new ArrayList<ByteBuffer>();
+            journal.recover(new JournalObserver() {
+                public void recover(ByteBuffer buf) {
+                    ordered.add(buf);
+                }
+            }, ReadMode.COPY, pool, 2);
+            Assert.assertEquals(writes - 1, ordered.size());
+            Assert.assertEquals(sequential, ordered);
+            
+            final AtomicInteger concurrent = new AtomicInteger(0);
+            journal.recover(new ConcurrentJournalObserver() {
+                public void recover(ByteBuffer buf) {
+                    concurrent.incrementAndGet();
+                }
+            }, ReadMode.MAPPED, pool, 2);
+            Assert.assertEquals(writes - 1, concurrent.get());
+        } finally {
+            pool.shutdown();
+        }
+    }
+    
+    @Test
+    public void testConcurrentRecoveryKeepsToParallelism() throws Exception {
+        final int writes = (4 * SEGMENT_SIZE) / params.bufSize;
+        for (int i = 0; i < writes; i++) {
+            journal.append(bytes(params.bufSize));
+        }
+        journal.drain();
+        journal.close();
+        journal = buildJournal(dir);
+        
+        // counts the segments in flight whenever another one is handed over. the executor has threads to spare.
+        final ExecutorService pool = Executors.newFixedThreadPool(4);
+        final List<Future<?>> handedOver = new ArrayList<Future<?>>();
+        final AtomicInteger mostInFlight = new AtomicInteger(0);
+        Executor counting = new Executor() {
+            public void execute(Runnable task) {
+                handedOver.add((Future<?>)task);
+                int inFlight = 0;
+                for (Future<?> f : handedOver) {
+                    inFlight += f.isDone() ? 0 : 1;
+                }
+                mostInFlight.set(Math.max(mostInFlight.get(), inFlight));
+                pool.execute(task);
+            }
+        };
+        try {
+            final AtomicInteger recovered = new AtomicInteger(0);
+            journal.recover(new ConcurrentJournalObserver() {
+                public void recover(ByteBuffer buf) {
+                    // slow enough that every segment would be in flight at once without the bound.
+                    LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(100));
+                    recovered.incrementAndGet();
+                }
+            }, ReadMode.COPY, counting, 2);
+            Assert.assertEquals(writes - 1, recovered.get());
+            Assert.assertTrue(handedOver.size() > 2);
+            Assert.assertTrue(mostInFlight.get() <= 2);
+        } finally {
+            pool.shutdown();
+        }
+    }
+    
+    @Test
+    public void testSyncListeners() throws Exception {
+        final int writes = 1000;
+        final AtomicInteger synced = new AtomicInteger(0);
+        final Runnable listener = new Runnable() {
+            public void run() {
+                synced.incrementAndGet();
+            }
+        };
+        
+        Journal.Receipt first = null;
+        Journal.Receipt last = null;
+        for (int i = 0; i < writes; i++) {
+            last = journal.append(bytes(params.bufSize));
+            last.addSyncListener(listener);
+            if (first == null) {
+                first = last;
+            }
+        }
+        
+        // the journal syncs every 100 writes, so the first write gets synced without any help.
+        Assert.assertSame(first, first.whenSynced().get(10, TimeUnit.SECONDS));
+        Assert.assertTrue(first.isSynced());
+        
+        // draining syncs whatever is left.
+        journal.drain();
+        Assert.assertTrue(last.isSynced());
+        Assert.assertTrue(last.isDurable(Durability.SYNCED));
+        Assert.assertEquals(writes, synced.get());
+        Assert.assertEquals(writes - 1, journal.getWrittenWatermark());
+        Assert.assertEquals(writes - 1, journal.getSyncedWatermark());
+        last.await(0, Durability.SYNCED);
+    }
+    
+    @Test
+    public void testIdleJournalGetsSynced() throws Exception {
+        SegmentFactory segmentFactory = FileSegmentFactory.FileSegmentFactoryBuilder
+                .newBuilder()
+                .withBytesBetweenSync(0)
+                .withWritesBetweenSync(0)
+                .withMillisBetweenSync(100)
+                .withDirectory(dir)
+                .build();
+        journal.close();
+        journal = Journal.JournalBuilder
+                .newBuilder()
+                .withSegmentFactory(segmentFactory)
+                .withSegmentSize(SEGMENT_SIZE)
+                .withBackgroundSync(true)
+                .build();
+        
+        // nothing else gets appended, so only the sync thread can notice that it is time.
+        Journal.Receipt receipt = journal.append(bytes(params.bufSize));
+        receipt.await(5000, Durability.SYNCED);
+        Assert.assertTrue(receipt.isSynced());
+        Assert.assertEquals(0, journal.getSyncedWatermark());
+    }
+    
+    @Test
+    public void testSyncEveryAppendIsSyncedWhenWritten() throws Exception {
+        SegmentFactory segmentFactory = FileSegmentFactory.FileSegmentFactoryBuilder
+                .newBuilder()
+                .withSyncAfterEveryAppend(true)
+                .withDirectory(dir)
+                .build();
+        journal.close();
+        journal = new Journal(segmentFactory, SEGMENT_SIZE);
+        
+        // the writer syncs before it hands out the receipt, so waiting for the write is waiting for the sync.
+        for (int i = 0; i < 200; i++) {
+            Journal.Receipt receipt = journal.append(bytes(params.bufSize));
+            receipt.await(5000);
+            Assert.assertTrue(receipt.isSynced());
+        }
+    }
+    
+    @Test
+    public void testBatchAppend() throws Exception {
+        final int batchSize = 100;
+        final int batches = (3 * SEGMENT_SIZE) / (params.bufSize * batchSize) + 1;
+        ArrayList<Journal.BatchReceipt> receipts = new ArrayList<Journal.BatchReceipt>();
+        for (int i = 0; i < batches; i++) {
+            ArrayList<ByteBuffer> bufs = new ArrayList<ByteBuffer>();
+            for (int j = 0; j < batchSize; j++) {
+                bufs.add(bytes(params.bufSize));
+            }
+            receipts.add(journal.append(bufs));
+        }
+        Assert.assertEquals(batches * batchSize, journal.getAppendsSinceOpen());
+
+        for (Journal.BatchReceipt receipt : receipts) {
+            receipt.await(5000);
+            Assert.assertEquals(batchSize, receipt.size());
+            Assert.assertEquals(batchSize * params.bufSize, receipt.length());
+            for (int j = 1; j < batchSize; j++) {
+                Assert.assertEquals(Frame.size(params.bufSize), receipt.position(j) - receipt.position(j - 1));
+            }
+            // records in a batch get consecutive lsns.
+            Journal.Receipt first = receipt.get(0);
+            first.await(5000);
+            Assert.assertEquals(batchSize - 1, receipt.getLsn() - first.getLsn());
+            Assert.assertTrue(first.compareTo(receipt) < 0);
+        }
+
+        // mark in the middle of a batch. recovery picks up right after that record.
+        Journal.BatchReceipt middle = receipts.get(batches / 2);
+        journal.mark(middle.get(batchSize / 2));
+        journal.drain();
+        journal.close();
+
+        journal = buildJournal(dir);
+        final AtomicInteger recoveries = new AtomicInteger(0);
+        journal.recover(new JournalObserver() {
+            public void recover(ByteBuffer buf) {
+                recoveries.incrementAndGet();
+            }
+        });
+        int after = (batches - batches / 2) * batchSize - batchSize / 2 - 1;
+        Assert.assertEquals(after, recoveries.get());
+    }
+
+    @Test
+    public void testBorrowedBuffersAreReused() throws Exception {
+        BufferPool pool = new BufferPool();
+        SegmentFactory segmentFactory = FileSegmentFactory.FileSegmentFactoryBuilder
+                .newBuilder()
+                .withDirectory(dir)
+                .withStaging(pool)
+                .build();
+        journal.close();
+        journal = Journal.JournalBuilder
+                .newBuilder()
+                .withSegmentFactory(segmentFactory)
+                .withSegmentSize(SEGMENT_SIZE)
+                .withBufferPool(pool)
+                .build();
+
+        final int writes = 1000;
+        Journal.Receipt last = null;
+        for (int i = 0; i < writes; i++) {
+            ByteBuffer buf = journal.borrow(params.bufSize);
+            buf.put(bytes(params.bufSize));
+            buf.flip();
+            last = journal.appendBorrowed(buf);
+            if (i % 10 == 0) {
+                // keep the number in flight small, so the pool covers it.
+                last.await(5000);
+            }
+        }
+        last.await(5000);
+        Assert.assertTrue(pool.getAllocations() <= 16);
+
+        journal.drain();
+        journal.close();
+        journal = buildJournal(dir);
+        final AtomicInteger recoveries = new AtomicInteger(0);
+        journal.recover(new JournalObserver() {
+            public void recover(ByteBuffer buf) {
+                Assert.assertEquals(bytes(params.bufSize), buf);
+                recoveries.incrementAndGet();
+            }
+        });
+        // the first record is taken as the mark.
+        Assert.assertEquals(writes - 1, recoveries.get());
+    }
+
+    @Test
+    public void testPrecreatedSegmentsAreUsed() throws Exception {
+        journal.close();
+        journal = Journal.JournalBuilder
+                .newBuilder()
+                .withSegmentFactory(FileSegmentFactory.FileSegmentFactoryBuilder.newBuilder().withDirectory(dir).build())
+                .withSegmentSize(SEGMENT_SIZE)
+                .withSegmentPrecreation(true)
+                .build();
+        
+        final int writes = (4 * SEGMENT_SIZE) / params.bufSize;
+        for (int i = 0; i < writes; i++) {
+            ByteBuffer buf = ByteBuffer.allocate(params.bufSize);
+            buf.putInt(0, i);
+            journal.append(buf);
+        }
+        
+        // draining gets rid of the segment that was prepared but never needed.
+        journal.drain();
+        journal.close();
+        for (File f : dir.listFiles()) {
+            if (f.getName().endsWith("-segment.log")) {
+                Assert.assertTrue(f.length() > 0);
+            }
+        }
+        journal = buildJournal(dir);
+        final AtomicInteger recovered = new AtomicInteger(0);
+        journal.recover(new JournalObserver() {
+            public void recover(ByteBuffer buf) {
+                // the first record is taken as the mark.
+                Assert.assertEquals(recovered.incrementAndGet(), buf.getInt(buf.position()));
+            }
+        });
+        Assert.assertEquals(writes - 1, recovered.get());
+    }
+    
+    @Test
+    public void testLsnsCarryOnAcrossReopen() throws Exception {
+        final int writes = 1000;
+        Journal.Receipt last = null;
+        for (int i = 0; i < writes; i++) {
+            last = journal.append(bytes(params.bufSize));
+        }
+        last.await(5000);
+        Assert.assertEquals(writes - 1, last.getLsn());
+        journal.drain();
+        journal.close();
+        
+        journal = buildJournal(dir);
+        Assert.assertEquals(writes - 1, journal.getWrittenWatermark());
+        Journal.Receipt next = journal.append(bytes(params.bufSize));
+        next.await(5000);
+        Assert.assertEquals(writes, next.getLsn());
+        
+        // pick up after a checkpointed lsn. the observer gets lsns too.
+        final ArrayList<Long> lsns = new ArrayList<Long>();
+        journal.recover(new SequencedJournalObserver() {
+            public void recover(long lsn, ByteBuffer buf) {
+                Assert.assertEquals(params.bufSize, buf.remaining());
+                lsns.add(lsn);
+            }
+            
+            public void recover(ByteBuffer buf) {
+                Assert.fail("lsn was not passed along");
+            }
+        }, 899L);
+        Assert.assertEquals(101, lsns.size());
+        for (int i = 0; i < lsns.size(); i++) {
+            Assert.assertEquals(900 + i, lsns.get(i).longValue());
+        }
+    }
+    
+    @Test
+    public void testOlderMarkInSameSegmentIsIgnored() throws Exception {
+        Journal.Receipt first = journal.append(bytes(params.bufSize));
+        Journal.Receipt second = journal.append(bytes(params.bufSize));
+        Journal.Receipt third = journal.append(bytes(params.bufSize));
+        third.await(5000);
+        Assert.assertTrue(first.compareTo(second) < 0);
+        
+        journal.mark(second);
+        journal.mark(first);
+        journal.drain();
+        journal.close();
+        
+        journal = buildJournal(dir);
+        final AtomicInteger recoveries = new AtomicInteger(0);
+        journal.recover(new JournalObserver() {
+            public void recover(ByteBuffer buf) {
+                recoveries.incrementAndGet();
+            }
+        });
+        Assert.assertEquals(1, recoveries.get());
+    }
+    
+    @Test
+    public void testMarkReclaimsBeforeReturning() throws Exception {
+        final int writes = (4 * SEGMENT_SIZE) / params.bufSize;
+        Journal.Receipt last = null;
+        for (int i = 0; i < writes; i++) {
+            last = journal.append(bytes(params.bufSize));
+        }
+        last.await(5000);
+        journal.mark(last);
+        
+        // only the marked segment is left, without waiting for anything.
+        Assert.assertEquals(0, journal.getPendingReclamations());
+        Assert.assertTrue(journal.getReclaimedSegments() >= 3);
+        Assert.assertEquals(2, dir.list().length);
+    }
+    
+    @Test
+    public void testMarkReclaimsInBackground() throws Exception {
+        SegmentFactory segmentFactory = FileSegmentFactory.FileSegmentFactoryBuilder
+                .newBuilder()
+                .withDirectory(dir)
+                .build();
+        journal.close();
+        journal = Journal.JournalBuilder
+                .newBuilder()
+                .withSegmentFactory(segmentFactory)
+                .withSegmentSize(SEGMENT_SIZE)
+                .withBackgroundReclamation(true)
+                .withReclamationRate(1000)
+                .build();
+
+        final int writes = (4 * SEGMENT_SIZE) / params.bufSize;
+        Journal.Receipt last = null;
+        for (int i = 0; i < writes; i++) {
+            last = journal.append(bytes(params.bufSize));
+        }
+        journal.mark(last);
+
+        // every segment but the last one goes away once reclamation catches up.
+        journal.drain();
+        Assert.assertEquals(0, journal.getPendingReclamations());
+        Assert.assertEquals(0, journal.getFailedReclamations());
+        Assert.assertTrue(journal.getReclaimedSegments() >= 3);
+        Assert.assertEquals(2, dir.list().length);
+    }
+
+    @Test
+    public void testReadByLsn() throws Exception {
+        final int writes = (3 * SEGMENT_SIZE) / params.bufSize;
+        Journal.Receipt last = null;
+        for (int i = 0; i < writes; i++) {
+            ByteBuffer buf = ByteBuffer.allocate(params.bufSize);
+            buf.putInt(0, i);
+            last = journal.append(buf);
+        }
+        last.await(5000);
+        
+        // while the journal is still open, and then again from the indexes that were saved with the segments.
+        for (int round = 0; round < 2; round++) {
+            for (int i = 0; i < 100; i++) {
+                int lsn = random.nextInt(writes);
+                ByteBuffer buf = journal.read(lsn);
+                Assert.assertEquals(params.bufSize, buf.remaining());
+                Assert.assertEquals(lsn, buf.getInt(buf.position()));
+            }
+            Assert.assertEquals(writes - 1, journal.read(last).getInt(0));
+            Assert.assertNull(journal.read(writes));
+            
+            final AtomicInteger next = new AtomicInteger(writes - 1000);
+            journal.readFrom(writes - 1000, new JournalObserver() {
+                public void recover(ByteBuffer buf) {
+                    Assert.assertEquals(next.getAndIncrement(), buf.getInt(buf.position()));
+                }
+            });
+            Assert.assertEquals(writes, next.get());
+            
+            journal.drain();
+            journal.close();
+            journal = buildJournal(dir);
+        }
+    }
+    
+    @Test
+    public void testTailsFollowAppends() throws Exception {
+        // nothing gets appended after the last record, so only the sync thread gets it synced.
+        SegmentFactory segmentFactory = FileSegmentFactory.FileSegmentFactoryBuilder
+                .newBuilder()
+                .withWritesBetweenSync(100)
+                .withMillisBetweenSync(100)
+                .withDirectory(dir)
+                .build();
+        journal.close();
+        journal = Journal.JournalBuilder
+                .newBuilder()
+                .withSegmentFactory(segmentFactory)
+                .withSegmentSize(SEGMENT_SIZE)
+                .withBackgroundSync(true)
+                .build();
+        
+        final int writes = (3 * SEGMENT_SIZE) / params.bufSize;
+        final int tails = 3;
+        final AtomicInteger followed = new AtomicInteger(0);
+        ExecutorService executor = Executors.newFixedThreadPool(tails);
+        for (int t = 0; t < tails; t++) {
+            final Tail tail = journal.tail(0);
+            executor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        for (int i = 0; i < writes; i++) {
+                            ByteBuffer buf = tail.next(5000);
+                            Assert.assertEquals(i, buf.getInt(buf.position()));
+                        }
+                        followed.incrementAndGet();
+                    } catch (Exception ex) {
+                        throw new RuntimeException(ex);
+                    }
+                }
+            });
+        }
+        
+        Journal.Receipt receipt = null;
+        for (int i = 0; i < writes; i++) {
+            ByteBuffer buf = ByteBuffer.allocate(params.bufSize);
+            buf.putInt(0, i);
+            Journal.Receipt appended = journal.append(buf);
+            if (i == writes / 2) {
+                receipt = appended;
+            }
+        }
+        executor.shutdown();
+        Assert.assertTrue(executor.awaitTermination(30, TimeUnit.SECONDS));
+        Assert.assertEquals(tails, followed.get());
+        
+        // starting from a receipt picks up after it, and there is nothing to wait for at the end.
+        Tail tail = journal.tail(receipt);
+        Assert.assertEquals(writes / 2 + 1, tail.getNextLsn());
+        for (int i = writes / 2 + 1; i < writes; i++) {
+            Assert.assertEquals(i, tail.poll().getInt(0));
+        }
+        Assert.assertNull(tail.poll());
+        Assert.assertNull(tail.next(10));
+    }
+    
+    @Test
+    public void testCursorsHoldBackReclamation() throws Exception {
+        journal.close();
+        Journal.JournalBuilder builder = Journal.JournalBuilder
+                .newBuilder()
+                .withSegmentFactory(FileSegmentFactory.FileSegmentFactoryBuilder.newBuilder().withDirectory(dir).build())
+                .withSegmentSize(SEGMENT_SIZE)
+                .withBackgroundReclamation(false)
+                .withCursorManifest(new File(dir, "cursors"));
+        journal = builder.build();
+        Cursor fast = journal.cursor("fast");
+        Cursor slow = journal.cursor("slow");
+        
+        final int writes = (4 * SEGMENT_SIZE) / params.bufSize;
+        Journal.Receipt last = null;
+        for (int i = 0; i < writes; i++) {
+            last = journal.append(bytes(params.bufSize));
+        }
+        last.await(5000);
+        
+        // the slow cursor has not read anything, so nothing can go.
+        fast.mark(last);
+        Assert.assertEquals(0, journal.getReclaimedSegments());
+        Assert.assertEquals(0, fast.getLagRecords());
+        Assert.assertEquals(0, fast.getLagBytes());
+        Assert.assertEquals(writes, slow.getLagRecords());
+        Assert.assertEquals((long)writes * Frame.size(params.bufSize), slow.getLagBytes());
+        
+        slow.mark(writes / 2);
+        Assert.assertEquals(writes - 1 - writes / 2, slow.getLagRecords());
+        Assert.assertEquals((long)(writes - 1 - writes / 2) * Frame.size(params.bufSize), slow.getLagBytes());
+        slow.mark(last);
+        Assert.assertTrue(journal.getReclaimedSegments() >= 3);
+        
+        journal.drain();
+        journal.close();
+        journal = builder.build();
+        Assert.assertEquals(2, journal.getCursors().size());
+        Assert.assertEquals(last.getLsn(), journal.cursor("slow").getLsn());
+        Assert.assertEquals(last.getLsn(), journal.cursor("fast").getLsn());
+    }
+    
+    @Test
+    public void testLsnsCarryOnWhenEverythingIsReclaimed() throws Exception {
+        journal.close();
+        Journal.JournalBuilder builder = Journal.JournalBuilder
+                .newBuilder()
+                .withSegmentFactory(FileSegmentFactory.FileSegmentFactoryBuilder.newBuilder().withDirectory(dir).build())
+                .withSegmentSize(SEGMENT_SIZE)
+                .withBackgroundReclamation(false)
+                .withCursorManifest(new File(dir, "cursors"));
+        journal = builder.build();
+        final int writes = (2 * SEGMENT_SIZE) / params.bufSize;
+        Journal.Receipt last = null;
+        for (int i = 0; i < writes; i++) {
+            last = journal.append(bytes(params.bufSize));
+        }
+        last.await(5000);
+        journal.cursor("reader").mark(last.getLsn() - 1);
+        journal.drain();
+        journal.close();
+        
+        // nothing gets written, and the cursor passes every segment there is.
+        journal = builder.build();
+        journal.cursor("reader").mark(last);
+        journal.drain();
+        journal.close();
+        
+        journal = builder.build();
+        Journal.Receipt next = journal.append(bytes(params.bufSize));
+        next.await(5000);
+        Assert.assertEquals(last.getLsn() + 1, next.getLsn());
+        Assert.assertEquals(1, journal.cursor("reader").getLagRecords());
+        journal.drain();
+        journal.close();
+        
+        // even with no segment left at all, lsns carry on after where the cursors are.
+        for (File f : dir.listFiles()) {
+            if (f.getName().endsWith(".log")) {
+                Assert.assertTrue(f.delete());
+            }
+        }
+        journal = builder.build();
+        Assert.assertEquals(last.getLsn() + 1, journal.cursor("reader").getLsn() + 1);
+        next = journal.append(bytes(params.bufSize));
+        next.await(5000);
+        Assert.assertEquals(last.getLsn() + 1, next.getLsn());
+    }
+    
+    @Test
+    public void testMetricsAreReported() throws Exception {
+        journal.close();
+        MetricRegistry registry = new MetricRegistry();
+        SegmentFactory segmentFactory = FileSegmentFactory.FileSegmentFactoryBuilder
+                .newBuilder()
+                .withDirectory(dir)
+                .withMillisBetweenSync(100)
+                .withMetrics(registry, "journal")
+                .build();
+        journal = Journal.JournalBuilder
+                .newBuilder()
+                .withSegmentFactory(segmentFactory)
+                .withSegmentSize(SEGMENT_SIZE)
+                .withMetrics(registry, "journal")
+                .withBackgroundSync(true)
+                .build();
+        
+        final int writes = (2 * SEGMENT_SIZE) / params.bufSize;
+        Journal.Receipt last = null;
+        for (int i = 0; i < writes; i++) {
+            last = journal.append(bytes(params.bufSize));
+        }
+        last.await(5000, Durability.SYNCED);
+        journal.mark(last);
+        
+        Assert.assertEquals(writes, registry.timer("journal.append-to-written").getCount());
+        Assert.assertEquals(writes, registry.meter("journal.records").getCount());
+        Assert.assertEquals((long)writes * params.bufSize, registry.meter("journal.bytes").getCount());
+        Assert.assertEquals(writes, registry.histogram("journal.record-size").getCount());
+        Assert.assertTrue(registry.histogram("journal.batch-size").getCount() > 0);
+        // one sample per record. the last ones get recorded right after the watermark lets the receipt go.
+        long deadline = System.currentTimeMillis() + 5000;
+        while (registry.timer("journal.append-to-synced").getCount() < writes && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(writes, registry.timer("journal.append-to-synced").getCount());
+        Assert.assertTrue(registry.timer("journal.rollover").getCount() >= 1);
+        Assert.assertEquals(1, registry.timer("journal.mark").getCount());
+        Assert.assertTrue(registry.timer("journal.segment-sync").getCount() > 0);
+        Assert.assertTrue(registry.timer("journal.segment-create").getCount() >= 2);
+        Assert.assertEquals(0, registry.getGauges().get("journal.backlog-records").getValue());
+        Assert.assertTrue((Integer)registry.getGauges().get("journal.segments").getValue() >= 1);
+    }
+    
     @After
     public void closeJournal() throws IOException {
         journal.close();
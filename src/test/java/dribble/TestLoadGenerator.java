@@ -0,0 +1,62 @@
+package dribble;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.util.HashMap;
+import java.util.Map;
+
+public class TestLoadGenerator {
+
+    @Test
+    public void testPercentilesAreClose() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 100000; i++) {
+            histogram.record(i);
+        }
+        Assert.assertEquals(100000, histogram.getCount());
+        Assert.assertEquals(100000, histogram.getMax());
+        Assert.assertEquals(50000.5, histogram.getMean(), 0.001);
+        // buckets are less than 2% wide.
+        Assert.assertEquals(50000, histogram.getPercentile(50), 1000);
+        Assert.assertEquals(99000, histogram.getPercentile(99), 2000);
+        Assert.assertEquals(100000, histogram.getPercentile(100));
+        Assert.assertEquals(1, histogram.getPercentile(0));
+
+        LatencyHistogram small = new LatencyHistogram();
+        small.record(3);
+        small.record(-5);
+        Assert.assertEquals(3, small.getPercentile(100));
+        Assert.assertEquals(0, small.getPercentile(50));
+    }
+
+    @Test
+    public void testShortRun() throws Exception {
+        File dir = TestUtil.getRandomTempDir();
+        Map<String, String> options = new HashMap<String, String>();
+        options.put("dir", dir.getAbsolutePath());
+        options.put("rate", "2000");
+        options.put("duration", "2");
+        options.put("size", "uniform:10-1000");
+        options.put("mark-every", "100");
+        options.put("restart-every", "1");
+        options.put("segment-size", "65536");
+        options.put("sync-millis", "10");
+
+        LoadGenerator generator = new LoadGenerator(options);
+        generator.run();
+        Assert.assertTrue(generator.getAppendMicros().getCount() > 1000);
+        Assert.assertTrue(generator.getDurableMicros().getCount() > 0);
+        Assert.assertTrue(generator.getMarkMicros().getCount() > 0);
+        Assert.assertTrue(generator.getRecoveries() >= 1);
+
+        ByteArrayOutputStream report = new ByteArrayOutputStream();
+        generator.report(new PrintStream(report));
+        Assert.assertTrue(report.toString().contains("recovery"));
+
+        TestUtil.removeDir(dir);
+    }
+}
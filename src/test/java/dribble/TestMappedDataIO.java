@@ -0,0 +1,117 @@
+package dribble;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class TestMappedDataIO {
+    private static final Random random = new Random(System.nanoTime());
+    
+    @Test
+    public void testWriteAndReadBack() throws IOException {
+        File dir = TestUtil.getRandomTempDir();
+        File data = new File(dir, "segment.log");
+        File meta = new File(dir, "segment.meta");
+        
+        // deliberately too small, so the mapping has to grow.
+        Segment segment = Segment.forWrite(new MappedDataIO(data, 0, 1024), new FileMetaIO(meta));
+        for (int i = 0; i < 100; i++) {
+            byte[] buf = new byte[i+1];
+            random.nextBytes(buf);
+            segment.append(ByteBuffer.wrap(buf));
+        }
+        Assert.assertEquals(5050 + 100*Frame.HEADER_SIZE, segment.getFilePointer());
+        segment.mark(15 + (Frame.HEADER_SIZE*5)); // skips the first 5 entries.
+        segment.close();
+        
+        Segment readSegment = Segment.forRead(new FileDataIO(data, 0), new FileMetaIO(meta));
+        int counter = 6;
+        for (ByteBuffer buf : readSegment.readFromMark()) {
+            Assert.assertEquals(counter, buf.remaining());
+            counter += 1;
+        }
+        Assert.assertEquals(101, counter);
+        readSegment.close();
+        
+        TestUtil.removeDir(dir);
+    }
+    
+    @Test
+    public void testMappedJournal() throws Exception {
+        File dir = TestUtil.getRandomTempDir();
+        SegmentFactory factory = FileSegmentFactory.FileSegmentFactoryBuilder.newBuilder()
+                .withDirectory(dir)
+                .withWritesBetweenSync(100)
+                .withMemoryMapping(0x00100000)
+                .build();
+        Journal journal = new Journal(factory, 0x00100000);
+        
+        byte[] buf = new byte[1000];
+        random.nextBytes(buf);
+        Journal.Receipt receipt = null;
+        for (int i = 0; i < 5000; i++) {
+            receipt = journal.append(ByteBuffer.wrap(buf));
+        }
+        receipt.await(10000);
+        journal.drain();
+        journal.close();
+        
+        // 5000 records of 1004 bytes is a bit under 5mb.
+        Assert.assertEquals(5 * 2, dir.list().length);
+        
+        // the zeroed tail of each mapping must not look like records.
+        journal = new Journal(factory, 0x00100000);
+        final AtomicInteger recoveries = new AtomicInteger(0);
+        journal.recover(new JournalObserver() {
+            public void recover(ByteBuffer buf) {
+                recoveries.incrementAndGet();
+            }
+        });
+        journal.close();
+        Assert.assertEquals(5000 - 1, recoveries.get());
+        
+        TestUtil.removeDir(dir);
+    }
+    
+    @Test
+    public void testCloseWhileWriting() throws Exception {
+        File dir = TestUtil.getRandomTempDir();
+        final MappedDataIO io = new MappedDataIO(new File(dir, "segment.log"), 0, 1024);
+        final AtomicInteger writes = new AtomicInteger(0);
+        final AtomicReference<Throwable> stopped = new AtomicReference<Throwable>();
+        
+        // a writer that does not stop when it is asked to, the way the journal has to allow for. it keeps growing the
+        // mapping too, so closing races remaps as well as puts.
+        Thread writer = new Thread(new Runnable() {
+            public void run() {
+                ByteBuffer buf = ByteBuffer.allocate(100);
+                try {
+                    while (true) {
+                        buf.clear();
+                        io.write(buf);
+                        writes.incrementAndGet();
+                    }
+                } catch (Throwable th) {
+                    stopped.set(th);
+                }
+            }
+        });
+        writer.start();
+        while (writes.get() < 1000) {
+            Thread.yield();
+        }
+        io.close();
+        writer.join(10000);
+        
+        // closing has to fail the writer cleanly rather than pull the mapping out from under it.
+        Assert.assertTrue(stopped.get() instanceof ClosedChannelException);
+        TestUtil.removeDir(dir);
+    }
+}
@@ -0,0 +1,103 @@
+package dribble;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class TestMemoryDataIO {
+    private static final Random random = new Random(System.nanoTime());
+    
+    @Test
+    public void testWriteAndReadBack() throws IOException {
+        // deliberately too small, so the buffer has to grow.
+        MemoryDataIO data = new MemoryDataIO(0, 16, false, SimulatedDisk.NONE);
+        MemoryMetaIO meta = new MemoryMetaIO(SimulatedDisk.NONE);
+        Segment segment = Segment.forWrite(data, meta);
+        for (int i = 0; i < 100; i++) {
+            byte[] buf = new byte[i+1];
+            random.nextBytes(buf);
+            segment.append(ByteBuffer.wrap(buf));
+        }
+        Assert.assertEquals(5050 + 100*Frame.HEADER_SIZE, segment.getFilePointer());
+        segment.mark(15 + (Frame.HEADER_SIZE*5)); // skips the first 5 entries.
+        segment.close();
+        
+        Segment readSegment = Segment.forRead(data.reopen(), meta.reopen());
+        int counter = 6;
+        for (ByteBuffer buf : readSegment.readFromMark()) {
+            Assert.assertEquals(counter, buf.remaining());
+            counter += 1;
+        }
+        Assert.assertEquals(101, counter);
+        readSegment.close();
+        
+        // closed handles behave like closed files.
+        try {
+            data.read(ByteBuffer.allocate(1), 0);
+            Assert.fail("read from a closed handle");
+        } catch (IOException expected) { }
+    }
+    
+    @Test
+    public void testJournalRecoversFromFactory() throws Exception {
+        SegmentFactory factory = MemorySegmentFactory.MemorySegmentFactoryBuilder.newBuilder()
+                .withWritesBetweenSync(100)
+                .withDirectBuffers(true)
+                .build();
+        Journal.JournalBuilder builder = Journal.JournalBuilder
+                .newBuilder()
+                .withSegmentFactory(factory)
+                .withSegmentSize(0x00100000)
+                .withBackgroundReclamation(false);
+        Journal journal = builder.build();
+        
+        byte[] buf = new byte[1000];
+        random.nextBytes(buf);
+        Journal.Receipt receipt = null;
+        Journal.Receipt half = null;
+        for (int i = 0; i < 5000; i++) {
+            receipt = journal.append(ByteBuffer.wrap(buf));
+            if (i == 2499) {
+                half = receipt;
+            }
+        }
+        receipt.await(10000);
+        journal.mark(half);
+        // 5000 records of 1020 bytes fill about 5 segments. the first two are done with.
+        Assert.assertTrue(journal.getReclaimedSegments() >= 2);
+        journal.drain();
+        journal.close();
+        
+        journal = builder.build();
+        final AtomicInteger recoveries = new AtomicInteger(0);
+        journal.recover(new JournalObserver() {
+            public void recover(ByteBuffer buf) {
+                Assert.assertEquals(1000, buf.remaining());
+                recoveries.incrementAndGet();
+            }
+        });
+        journal.close();
+        Assert.assertEquals(2500, recoveries.get());
+    }
+    
+    @Test
+    public void testSyncTakesSimulatedTime() throws IOException {
+        // 2ms, plus 1mb at 100mb/s is another 10ms.
+        SimulatedDisk disk = new SimulatedDisk(TimeUnit.MILLISECONDS.toNanos(2), 100L * 0x00100000);
+        MemoryDataIO data = new MemoryDataIO(0, 0x00100000, false, disk);
+        data.write(ByteBuffer.allocate(0x00100000));
+        long started = System.nanoTime();
+        data.sync();
+        Assert.assertTrue(System.nanoTime() - started >= TimeUnit.MILLISECONDS.toNanos(12));
+        
+        // nothing new to write, but the latency is still there.
+        started = System.nanoTime();
+        data.sync();
+        Assert.assertTrue(System.nanoTime() - started >= TimeUnit.MILLISECONDS.toNanos(2));
+    }
+}
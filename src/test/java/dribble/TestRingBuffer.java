@@ -0,0 +1,77 @@
+package dribble;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+
+public class TestRingBuffer {
+    
+    @Test
+    public void testSizeIsRoundedUp() {
+        Assert.assertEquals(64, new RingBuffer<Integer>(33, WaitStrategy.YIELD).capacity());
+        Assert.assertEquals(1, new RingBuffer<Integer>(1, WaitStrategy.YIELD).capacity());
+    }
+    
+    @Test
+    public void testEachProducerStaysInOrder() throws Exception {
+        final int producers = 4;
+        final int each = 10000;
+        final RingBuffer<Integer> ring = new RingBuffer<Integer>(16, WaitStrategy.PARK);
+        Thread[] threads = new Thread[producers];
+        for (int i = 0; i < producers; i++) {
+            final int producer = i;
+            threads[i] = new Thread(new Runnable() {
+                public void run() {
+                    for (int j = 0; j < each; j++) {
+                        ring.publish(producer * each + j);
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        
+        int[] lastSeen = new int[producers];
+        Arrays.fill(lastSeen, -1);
+        List<Integer> batch = new ArrayList<Integer>();
+        int total = 0;
+        while (total < producers * each) {
+            if (ring.drainTo(batch, 100) == 0) {
+                ring.awaitPublished();
+                continue;
+            }
+            for (Integer item : batch) {
+                int producer = item / each;
+                Assert.assertTrue(item % each > lastSeen[producer]);
+                lastSeen[producer] = item % each;
+            }
+            total += batch.size();
+            batch.clear();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        Assert.assertEquals(0, ring.size());
+    }
+    
+    @Test
+    public void testClosedRingRejectsButDrains() {
+        RingBuffer<Integer> ring = new RingBuffer<Integer>(4, WaitStrategy.BUSY_SPIN);
+        ring.publish(1);
+        ring.publish(2);
+        ring.close();
+        Assert.assertFalse(ring.isDrained());
+        try {
+            ring.publish(3);
+            Assert.fail("closed ring accepted a publish");
+        } catch (RejectedExecutionException ex) {
+            // expected.
+        }
+        List<Integer> batch = new ArrayList<Integer>();
+        Assert.assertEquals(2, ring.drainTo(batch, 10));
+        Assert.assertTrue(ring.isDrained());
+    }
+}
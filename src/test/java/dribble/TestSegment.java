@@ -5,8 +5,10 @@ import org.junit.Test;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class TestSegment {
     private static final Random random = new Random(System.nanoTime());
@@ -54,7 +56,7 @@ public class TestSegment {
         segment.append(ByteBuffer.wrap(buf));
         segment.append(ByteBuffer.wrap(buf));
         long fp = segment.getFilePointer();
-        Assert.assertEquals((buf.length + 4) * 2, fp);
+        Assert.assertEquals((buf.length + Frame.HEADER_SIZE) * 2, fp);
         Assert.assertEquals(0, segment.getMark());
         
         segment.mark(fp);
@@ -86,9 +88,9 @@ public class TestSegment {
             segment.append(ByteBuffer.wrap(buf));
         }
         
-        Assert.assertEquals(5050 + 100*4, segment.getFilePointer());
+        Assert.assertEquals(5050 + 100*Frame.HEADER_SIZE, segment.getFilePointer());
         
-        segment.mark(15 + (4*5)); // skips the first 5 entries.
+        segment.mark(15 + (Frame.HEADER_SIZE*5)); // skips the first 5 entries.
         segment.force();
         segment.close();
         segment = null;
@@ -108,6 +110,270 @@ public class TestSegment {
         TestUtil.removeDir(dir);
     }
     
+    @Test
+    public void testPreallocatedSegment() throws IOException {
+        File dir = TestUtil.getRandomTempDir();
+        File data = new File(dir, "segment.log");
+        File meta = new File(dir, "segment.meta");
+        
+        Segment segment = Segment.forWrite(new FileDataIO(data, 0, 0x00010000), new FileMetaIO(meta));
+        Assert.assertEquals(0x00010000, data.length());
+        for (int i = 0; i < 100; i++) {
+            byte[] buf = new byte[i+1];
+            random.nextBytes(buf);
+            segment.append(ByteBuffer.wrap(buf));
+        }
+        Assert.assertEquals(5050 + 100*Frame.HEADER_SIZE, segment.getFilePointer());
+        segment.close();
+        
+        // appending did not grow the file, and the zeros after the last record are not records.
+        Assert.assertEquals(0x00010000, data.length());
+        Segment readSegment = Segment.forRead(new FileDataIO(data, 0), new FileMetaIO(meta));
+        int counter = 0;
+        for (ByteBuffer buf : readSegment.readFromMark()) {
+            counter += 1;
+            Assert.assertEquals(counter, buf.remaining());
+        }
+        Assert.assertEquals(100, counter);
+        readSegment.close();
+        
+        TestUtil.removeDir(dir);
+    }
+    
+    @Test
+    public void testStaleFramesAreNotRead() throws IOException {
+        File dir = TestUtil.getRandomTempDir();
+        File data = new File(dir, "segment.log");
+        File meta = new File(dir, "segment.meta");
+
+        Segment segment = Segment.forWrite(new FileDataIO(data, 0), new FileMetaIO(meta));
+        for (int i = 0; i < 100; i++) {
+            segment.append(ByteBuffer.wrap(new byte[100]));
+        }
+        segment.close();
+
+        // reuse the file for a later generation without clearing it.
+        segment = Segment.forWrite(new FileDataIO(data, 1), new FileMetaIO(meta));
+        for (int i = 0; i < 10; i++) {
+            segment.append(ByteBuffer.wrap(new byte[50]));
+        }
+        segment.close();
+
+        Segment readSegment = Segment.forRead(new FileDataIO(data, 1), new FileMetaIO(meta));
+        int counter = 0;
+        for (ByteBuffer buf : readSegment.readFromMark()) {
+            counter += 1;
+            Assert.assertEquals(50, buf.remaining());
+        }
+        Assert.assertEquals(10, counter);
+        counter = 0;
+        for (ByteBuffer buf : readSegment.mapFromMark(0)) {
+            counter += 1;
+        }
+        Assert.assertEquals(10, counter);
+        readSegment.close();
+
+        TestUtil.removeDir(dir);
+    }
+
+    @Test
+    public void testCorruptRecordEndsSegment() throws IOException {
+        File dir = TestUtil.getRandomTempDir();
+        File data = new File(dir, "segment.log");
+        File meta = new File(dir, "segment.meta");
+
+        Segment segment = Segment.forWrite(new FileDataIO(data, 0), new FileMetaIO(meta));
+        for (int i = 0; i < 10; i++) {
+            segment.append(ByteBuffer.wrap(new byte[100]));
+        }
+        segment.close();
+
+        // flip a payload byte of the fifth record.
+        RandomAccessFile raf = new RandomAccessFile(data, "rw");
+        raf.seek(Frame.size(100) * 4 + Frame.HEADER_SIZE + 50);
+        raf.write(1);
+        raf.close();
+
+        Segment readSegment = Segment.forRead(new FileDataIO(data, 0), new FileMetaIO(meta));
+        int counter = 0;
+        for (ByteBuffer buf : readSegment.readFromMark()) {
+            counter += 1;
+        }
+        Assert.assertEquals(4, counter);
+        counter = 0;
+        for (ByteBuffer buf : readSegment.mapFromMark(0)) {
+            counter += 1;
+        }
+        Assert.assertEquals(4, counter);
+        readSegment.close();
+
+        TestUtil.removeDir(dir);
+    }
+
+    @Test
+    public void testTornTailIsTruncated() throws IOException {
+        File dir = TestUtil.getRandomTempDir();
+        File data = new File(dir, "segment.log");
+        File meta = new File(dir, "segment.meta");
+
+        Segment segment = Segment.forWrite(new FileDataIO(data, 0), new FileMetaIO(meta));
+        for (int i = 0; i < 10; i++) {
+            segment.append(ByteBuffer.wrap(new byte[100]));
+        }
+        long end = segment.getFilePointer();
+        segment.mark(Frame.size(100) * 3);
+        // a crash in the middle of the next write: no seal, and half a record on disk.
+        segment.append(ByteBuffer.wrap(new byte[100]));
+        segment.sync();
+        RandomAccessFile raf = new RandomAccessFile(data, "rw");
+        raf.setLength(end + 60);
+        raf.close();
+
+        Segment readSegment = Segment.forRead(new FileDataIO(data, 0), new FileMetaIO(meta));
+        Assert.assertEquals(end, readSegment.repair());
+        Assert.assertEquals(9, readSegment.getLastLsn());
+        Assert.assertEquals(end, data.length());
+        readSegment.close();
+
+        // sealed by the repair, so it is not scanned again.
+        readSegment = Segment.forRead(new FileDataIO(data, 0), new FileMetaIO(meta));
+        Assert.assertEquals(end, readSegment.repair());
+        Assert.assertEquals(9, readSegment.getLastLsn());
+        int counter = 0;
+        for (ByteBuffer buf : readSegment.readFromMark()) {
+            counter += 1;
+        }
+        Assert.assertEquals(7, counter);
+        readSegment.close();
+
+        TestUtil.removeDir(dir);
+    }
+
+    @Test
+    public void testMissingMetaFileIsReadFromTheStart() throws IOException {
+        File dir = TestUtil.getRandomTempDir();
+        File data = new File(dir, "segment.log");
+        File meta = new File(dir, "segment.meta");
+        
+        Segment segment = Segment.forWrite(new FileDataIO(data, 0), new FileMetaIO(meta));
+        for (int i = 0; i < 10; i++) {
+            segment.append(ByteBuffer.wrap(new byte[100]));
+        }
+        segment.mark(Frame.size(100) * 3);
+        segment.close();
+        Assert.assertTrue(meta.delete());
+        
+        Segment readSegment = Segment.forRead(new FileDataIO(data, 0), new FileMetaIO(meta));
+        Assert.assertEquals(0, readSegment.getMark());
+        Assert.assertEquals(Frame.size(100) * 10, readSegment.repair());
+        Assert.assertEquals(9, readSegment.getLastLsn());
+        int counter = 0;
+        for (ByteBuffer buf : readSegment.readFromMark()) {
+            counter += 1;
+        }
+        Assert.assertEquals(10, counter);
+        readSegment.close();
+        
+        TestUtil.removeDir(dir);
+    }
+    
+    @Test
+    public void testMarksDoNotTearTheSeal() throws Exception {
+        File dir = TestUtil.getRandomTempDir();
+        File data = new File(dir, "segment.log");
+        File meta = new File(dir, "segment.meta");
+        
+        // gives the other thread every chance to get in between a seek and the write after it.
+        final MetaIO file = new FileMetaIO(meta);
+        MetaIO slowSeeks = new MetaIO() {
+            public void close() throws IOException { file.close(); }
+            public void sync() throws IOException { file.sync(); }
+            public void seek(long l) throws IOException {
+                file.seek(l);
+                Thread.yield();
+            }
+            public void writeLong(long l) throws IOException { file.writeLong(l); }
+            public long readLong() throws IOException { return file.readLong(); }
+            public void delete() throws IOException { file.delete(); }
+        };
+        final Segment segment = Segment.forWrite(new FileDataIO(data, 0), slowSeeks);
+        final int records = 2000;
+        segment.append(ByteBuffer.wrap(new byte[100]));
+        
+        // appending and forcing unseals and seals the segment over and over, the way the syncer forces a segment
+        // that is being retired, while another thread marks.
+        final AtomicReference<Throwable> failed = new AtomicReference<Throwable>(null);
+        Thread marker = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    for (int i = 0; i < records; i++) {
+                        segment.mark(Frame.size(100) * (i % 10));
+                    }
+                } catch (Throwable t) {
+                    failed.set(t);
+                }
+            }
+        });
+        marker.start();
+        for (int i = 1; i < records; i++) {
+            segment.append(ByteBuffer.wrap(new byte[100]));
+            segment.force();
+        }
+        marker.join();
+        Assert.assertNull(failed.get());
+        long end = segment.getFilePointer();
+        segment.close();
+        
+        Segment readSegment = Segment.forRead(new FileDataIO(data, 0), new FileMetaIO(meta));
+        Assert.assertEquals(Frame.size(100) * ((records - 1) % 10), readSegment.getMark());
+        Assert.assertEquals(end, readSegment.getEnd());
+        Assert.assertEquals(records - 1, readSegment.getLastLsn());
+        readSegment.close();
+        
+        TestUtil.removeDir(dir);
+    }
+    
+    @Test
+    public void testRecycledSegmentsAreReused() throws IOException {
+        File dir = TestUtil.getRandomTempDir();
+        SegmentFactory factory = FileSegmentFactory.FileSegmentFactoryBuilder
+                .newBuilder()
+                .withDirectory(dir)
+                .withPreallocation(0x00010000)
+                .withRecycling(1)
+                .build();
+
+        Segment first = factory.next();
+        first.append(ByteBuffer.wrap(new byte[100]));
+        Segment second = factory.next();
+        first.forget();
+        factory.recycle(first);
+        second.forget();
+        factory.recycle(second);
+
+        // one went into the pool, the other was deleted. no segments are left to recover.
+        Assert.assertEquals(1, dir.listFiles().length);
+        Assert.assertFalse(factory.getSegments().iterator().hasNext());
+
+        Segment third = factory.next();
+        Assert.assertTrue(third.generation() > second.generation());
+        Assert.assertEquals(2, dir.listFiles().length);
+        third.append(ByteBuffer.wrap(new byte[10]));
+        third.close();
+
+        int counter = 0;
+        for (Segment seg : factory.getSegments()) {
+            for (ByteBuffer buf : seg.readFromMark(0)) {
+                counter += 1;
+                Assert.assertEquals(10, buf.remaining());
+            }
+            seg.close();
+        }
+        Assert.assertEquals(1, counter);
+
+        TestUtil.removeDir(dir);
+    }
+
     @Test(expected = IOException.class)
     public void testReadSegmentCannotBeAppendedTo() throws IOException {
         File dir = TestUtil.getRandomTempDir();
@@ -148,16 +414,16 @@ public class TestSegment {
             segment.append(ByteBuffer.wrap(buf));
         }
         // each entry takes one byte more than the next.
-        // 0:5, 1:6, 2:7, 3:8. so the next entry begins at offset 5+6+7+8=26 and should have us expecting 5 bytes.
-        segment.mark(26);
-        Assert.assertEquals(26, segment.getMark());
+        // 0:21, 1:22, 2:23, 3:24. so the next entry begins at offset 21+22+23+24=90 and should have us expecting 5 bytes.
+        segment.mark(90);
+        Assert.assertEquals(90, segment.getMark());
         segment.close();
         
         Assert.assertTrue(dir.list().length > 0);
         
         segment = Segment.forRead(new FileDataIO(data, 0), new FileMetaIO(meta));
         
-        Assert.assertEquals(26, segment.getMark());
+        Assert.assertEquals(90, segment.getMark());
         int bytesInNextEntry = segment.readInt(segment.getMark());
         
         Assert.assertEquals(5, bytesInNextEntry);
@@ -0,0 +1,182 @@
+package dribble;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class TestShardedJournal {
+    private static final int SHARDS = 3;
+    private static final int SEGMENT_SIZE = 0x00010000;
+
+    private File dir;
+    private ShardedJournal journal;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = TestUtil.getRandomTempDir();
+        journal = open(dir);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        journal.close();
+        TestUtil.removeDir(dir);
+    }
+
+    private static ShardedJournal open(File dir) throws Exception {
+        List<Journal> shards = new ArrayList<Journal>();
+        for (int i = 0; i < SHARDS; i++) {
+            File shardDir = new File(dir, "shard-" + i);
+            shardDir.mkdirs();
+            SegmentFactory segmentFactory = FileSegmentFactory.FileSegmentFactoryBuilder
+                    .newBuilder()
+                    .withDirectory(shardDir)
+                    .build();
+            shards.add(new Journal(segmentFactory, SEGMENT_SIZE));
+        }
+        return new ShardedJournal(shards);
+    }
+
+    private static ByteBuffer intBuf(int i) {
+        ByteBuffer buf = ByteBuffer.allocate(100);
+        buf.putInt(0, i);
+        return buf;
+    }
+
+    @Test
+    public void testMergedRecoveryIsInAppendOrder() throws Exception {
+        final int writes = 3000;
+        ShardedJournal.ShardReceipt last = null;
+        for (int i = 0; i < writes; i++) {
+            last = journal.append(intBuf(i));
+            Assert.assertEquals(i, last.getSequence());
+            Assert.assertEquals(i % SHARDS, last.getShard());
+        }
+        last.getReceipt().await(5000);
+        journal.drain();
+        journal.close();
+
+        journal = open(dir);
+        Assert.assertEquals(writes, journal.getNextSequence());
+
+        final List<Integer> recovered = new ArrayList<Integer>();
+        ExecutorService executor = Executors.newFixedThreadPool(SHARDS);
+        try {
+            journal.recover(new JournalObserver() {
+                public void recover(ByteBuffer buf) {
+                    Assert.assertEquals(100, buf.remaining());
+                    recovered.add(buf.getInt(buf.position()));
+                }
+            }, executor);
+        } finally {
+            executor.shutdown();
+        }
+
+        // every shard treats its first record as the mark.
+        Assert.assertEquals(writes - SHARDS, recovered.size());
+        for (int i = 0; i < recovered.size(); i++) {
+            Assert.assertEquals(i + SHARDS, recovered.get(i).intValue());
+        }
+    }
+
+    @Test
+    public void testSequenceSurvivesMarkingEverything() throws Exception {
+        final int writes = 30;
+        ShardedJournal.ShardReceipt[] newest = new ShardedJournal.ShardReceipt[SHARDS];
+        for (int i = 0; i < writes; i++) {
+            ShardedJournal.ShardReceipt receipt = journal.append(intBuf(i));
+            newest[receipt.getShard()] = receipt;
+        }
+        for (ShardedJournal.ShardReceipt receipt : newest) {
+            receipt.getReceipt().await(5000);
+            journal.mark(receipt);
+        }
+        journal.drain();
+        journal.close();
+        
+        // nothing is left to recover, but the sequence must not start over.
+        journal = open(dir);
+        Assert.assertEquals(writes, journal.getNextSequence());
+        ShardedJournal.ShardReceipt next = journal.append(intBuf(writes));
+        Assert.assertEquals(writes, next.getSequence());
+        next.getReceipt().await(5000);
+    }
+
+    @Test
+    public void testFailedAppendsGiveTheirBufferBack() throws Exception {
+        File shardDir = new File(dir, "full");
+        shardDir.mkdirs();
+        BufferPool pool = new BufferPool();
+        Journal shard = Journal.JournalBuilder
+                .newBuilder()
+                .withSegmentFactory(FileSegmentFactory.FileSegmentFactoryBuilder.newBuilder().withDirectory(shardDir).build())
+                .withSegmentSize(SEGMENT_SIZE)
+                .withBacklogRecords(1, 0)
+                .withBackpressurePolicy(BackpressurePolicy.FAIL)
+                .withBufferPool(pool)
+                .build();
+        ShardedJournal full = new ShardedJournal(Collections.singletonList(shard));
+        int failed = 0;
+        for (int i = 0; i < 1000; i++) {
+            try {
+                full.append(intBuf(i));
+            } catch (JournalFullException expected) {
+                failed += 1;
+            }
+        }
+        full.drain();
+        full.close();
+        Assert.assertTrue(failed > 0);
+        // one buffer waiting to be written, and one being filled.
+        Assert.assertTrue(pool.getAllocations() <= 2);
+    }
+
+    @Test
+    public void testKeysStickToShardsAndMarksArePerShard() throws Exception {
+        final int writes = 300;
+        List<ShardedJournal.ShardReceipt> receipts = new ArrayList<ShardedJournal.ShardReceipt>();
+        for (int i = 0; i < writes; i++) {
+            ShardedJournal.ShardReceipt receipt = journal.append("key", intBuf(i));
+            Assert.assertEquals(receipts.isEmpty() ? receipt.getShard() : receipts.get(0).getShard(), receipt.getShard());
+            receipts.add(receipt);
+        }
+        int shard = receipts.get(0).getShard();
+
+        receipts.get(99).getReceipt().await(5000);
+        journal.mark(receipts.get(99));
+        journal.drain();
+        journal.close();
+
+        journal = open(dir);
+        final List<Integer> recovered = new ArrayList<Integer>();
+        journal.recover(shard, new JournalObserver() {
+            public void recover(ByteBuffer buf) {
+                recovered.add(buf.getInt(buf.position()));
+            }
+        });
+        Assert.assertEquals(writes - 100, recovered.size());
+        Assert.assertEquals(100, recovered.get(0).intValue());
+
+        for (int i = 0; i < SHARDS; i++) {
+            if (i == shard) {
+                continue;
+            }
+            final List<ByteBuffer> none = new ArrayList<ByteBuffer>();
+            journal.recover(i, new JournalObserver() {
+                public void recover(ByteBuffer buf) {
+                    none.add(buf);
+                }
+            });
+            Assert.assertTrue(none.isEmpty());
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package dribble;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.TimeoutException;
+
+public class TestWatermark {
+    
+    @Test
+    public void testOnlyMovesForward() {
+        Watermark watermark = new Watermark(-1);
+        watermark.advance(10);
+        watermark.advance(5);
+        Assert.assertEquals(10, watermark.get());
+        Assert.assertTrue(watermark.reached(10));
+        Assert.assertFalse(watermark.reached(11));
+    }
+    
+    @Test
+    public void testFuturesCompleteInOrder() throws Exception {
+        Watermark watermark = new Watermark(-1);
+        ListenableFuture<Long> three = watermark.when(3);
+        ListenableFuture<Long> seven = watermark.when(7);
+        Assert.assertTrue(watermark.when(-1).isDone());
+        
+        watermark.advance(5);
+        Assert.assertTrue(three.isDone());
+        Assert.assertEquals(5L, three.get().longValue());
+        Assert.assertFalse(seven.isDone());
+        
+        watermark.advance(7);
+        Assert.assertTrue(seven.isDone());
+    }
+    
+    @Test
+    public void testAwait() throws Exception {
+        final Watermark watermark = new Watermark(-1);
+        new Thread(new Runnable() {
+            public void run() {
+                try { Thread.sleep(100); } catch (InterruptedException ex) { }
+                watermark.advance(1);
+            }
+        }).start();
+        watermark.await(1, 5000);
+        Assert.assertTrue(watermark.reached(1));
+    }
+    
+    @Test(expected = TimeoutException.class)
+    public void testAwaitTimesOut() throws Exception {
+        new Watermark(-1).await(0, 50);
+    }
+}